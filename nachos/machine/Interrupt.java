@@ -120,6 +120,23 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Stop timing the interrupt handler that is running. A handler that gives
+     * up the processor (as the timer handler does when it yields) must call
+     * this first, so that the time spent running other threads is not
+     * counted as handler time. Does nothing if no handler is being timed.
+     */
+    public void handlerFinished() {
+	Lib.assertTrue(disabled());
+
+	if (handlerStats == null)
+	    return;
+
+	handlerStats.handled(privilege.stats.totalTicks - handlerStartTicks,
+			     System.nanoTime() - handlerStartTime);
+	handlerStats = null;
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
@@ -180,8 +197,18 @@ public final class Interrupt {
 		privilege.processor.flushPipe();
 
 	    Lib.debug(dbgInt, "  " + next.type);
+
+	    Stats.InterruptStats stats =
+		privilege.stats.getInterruptStats(next.type);
+	    stats.dispatched(privilege.stats.totalTicks - next.time);
+
+	    handlerStats = stats;
+	    handlerStartTicks = privilege.stats.totalTicks;
+	    handlerStartTime = System.nanoTime();
 			
 	    next.handler.run();
+
+	    handlerFinished();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -237,6 +264,12 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
+
+    /** The statistics of the handler being timed, if any. */
+    private Stats.InterruptStats handlerStats = null;
+    private long handlerStartTicks;
+    private long handlerStartTime;
+
     private TreeSet<PendingInterrupt> pending;
 
     private static final char dbgInt = 'i';
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -97,9 +99,37 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	for (Iterator i=haltHandlers.iterator(); i.hasNext(); )
+	    ((Runnable) i.next()).run();
+
 	terminate();
     }
 
+    /**
+     * Add a handler to be invoked by <tt>halt()</tt> after the statistics
+     * have been printed. The kernel uses this to print statistics of its
+     * own.
+     *
+     * @param	handler	the handler to invoke.
+     */
+    public static void addHaltHandler(Runnable handler) {
+	haltHandlers.add(handler);
+    }
+
+    /**
+     * Record in the statistics that a real-time job has finished, and
+     * whether it finished by its deadline.
+     *
+     * @param	met	<tt>true</tt> if the job met its deadline.
+     */
+    public static void recordDeadline(boolean met) {
+	if (met)
+	    stats.numDeadlinesMet++;
+	else
+	    stats.numDeadlineMisses++;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -409,6 +439,8 @@ public final class Machine {
     private static String[] args = null;
 
     private static Stats stats = new Stats();
+    private static LinkedList<Runnable> haltHandlers =
+	new LinkedList<Runnable>();
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
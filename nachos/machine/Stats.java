@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.util.Iterator;
+import java.util.TreeMap;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -29,6 +32,173 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numDeadlinesMet + numDeadlineMisses > 0) {
+	    System.out.println("Deadlines: met " + numDeadlinesMet
+			       + ", missed " + numDeadlineMisses);
+	}
+
+	for (Iterator i=interruptStats.values().iterator(); i.hasNext(); )
+	    ((InterruptStats) i.next()).print();
+    }
+
+    /**
+     * Return the statistics kept for the specified interrupt type, creating
+     * them if this type has not been seen before.
+     *
+     * @param	type	the interrupt type, as passed to
+     *			<tt>Interrupt.schedule()</tt>.
+     * @return	the statistics for interrupts of this type.
+     */
+    public InterruptStats getInterruptStats(String type) {
+	InterruptStats stats = interruptStats.get(type);
+	if (stats == null) {
+	    stats = new InterruptStats(type);
+	    interruptStats.put(type, stats);
+	}
+
+	return stats;
+    }
+
+    /**
+     * Per-type interrupt statistics, maintained by <tt>Interrupt</tt> each
+     * time it invokes a handler.
+     */
+    public static final class InterruptStats {
+	InterruptStats(String type) {
+	    this.type = type;
+	}
+
+	/**
+	 * Record that a handler of this type is about to be invoked.
+	 *
+	 * @param	delay	the number of ticks between the time the
+	 *			interrupt was scheduled to occur and the time it
+	 *			was dispatched.
+	 */
+	public void dispatched(long delay) {
+	    count++;
+	    this.delay.add(delay);
+	}
+
+	/**
+	 * Record that a handler of this type has returned, or is about to
+	 * give up the processor. The time spent running other threads after
+	 * it gives up the processor is not included.
+	 *
+	 * @param	ticks	the simulated time spent in the handler.
+	 * @param	nanos	the host time spent in the handler.
+	 */
+	public void handled(long ticks, long nanos) {
+	    handlerTicks.add(ticks);
+	    handlerNanos.add(nanos);
+	}
+
+	/**
+	 * Print out these statistics.
+	 */
+	public void print() {
+	    System.out.println("Interrupt " + type + ": dispatched " + count
+			       + ", delay " + delay + " ticks");
+	    System.out.println("  handler " + handlerTicks + " ticks, "
+			       + handlerNanos + " ns");
+	    System.out.println("  delay histogram: "
+			       + delay.bucketsToString());
+	}
+
+	/** The interrupt type these statistics belong to. */
+	public final String type;
+	/** The number of handlers of this type that have been dispatched. */
+	public int count = 0;
+	/** Ticks from when each interrupt was due until it was dispatched. */
+	public final Histogram delay = new Histogram();
+	/** Simulated time spent in each handler. */
+	public final Histogram handlerTicks = new Histogram();
+	/** Host time spent in each handler, in nanoseconds. */
+	public final Histogram handlerNanos = new Histogram();
+    }
+
+    /**
+     * A histogram of non-negative values, kept in power-of-two buckets.
+     * Bucket 0 counts zeroes, and bucket <i>i</i> counts values in
+     * [2<sup><i>i</i>-1</sup>, 2<sup><i>i</i></sup>).
+     */
+    public static final class Histogram {
+	/**
+	 * Add a value to this histogram.
+	 *
+	 * @param	value	the value to add. Negative values are counted
+	 *			as zero.
+	 */
+	public void add(long value) {
+	    if (value < 0)
+		value = 0;
+
+	    count++;
+	    total += value;
+	    if (value > max)
+		max = value;
+
+	    buckets[64 - Long.numberOfLeadingZeros(value)]++;
+	}
+
+	/**
+	 * Return the mean of all values added, or 0 if there are none.
+	 *
+	 * @return	the mean value.
+	 */
+	public long mean() {
+	    return (count == 0) ? 0 : total / count;
+	}
+
+	/**
+	 * Return the number of values added to the specified bucket.
+	 *
+	 * @param	bucket	the bucket index.
+	 * @return	the count for that bucket.
+	 */
+	public long getBucket(int bucket) {
+	    return buckets[bucket];
+	}
+
+	public String toString() {
+	    return "mean " + mean() + ", max " + max;
+	}
+
+	/**
+	 * Return the non-empty buckets of this histogram, each labelled with
+	 * the range of values it counts.
+	 *
+	 * @return	a string describing the non-empty buckets.
+	 */
+	public String bucketsToString() {
+	    StringBuffer buf = new StringBuffer();
+
+	    for (int i=0; i<buckets.length; i++) {
+		if (buckets[i] == 0)
+		    continue;
+
+		if (buf.length() > 0)
+		    buf.append(", ");
+
+		if (i <= 1)
+		    buf.append(i);
+		else
+		    buf.append((1L << (i-1)) + "-" + ((1L << i) - 1));
+
+		buf.append(": " + buckets[i]);
+	    }
+
+	    return buf.toString();
+	}
+
+	/** The number of values added. */
+	public long count = 0;
+	/** The sum of all values added. */
+	public long total = 0;
+	/** The largest value added. */
+	public long max = 0;
+
+	private long[] buckets = new long[65];
     }
 
     /**
@@ -61,6 +231,14 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of real-time jobs that finished by their deadline. */
+    public int numDeadlinesMet = 0;
+    /** The total number of real-time jobs that finished after their
+	deadline. */
+    public int numDeadlineMisses = 0;
+
+    private TreeMap<String, InterruptStats> interruptStats =
+	new TreeMap<String, InterruptStats>();
 
     /**
      * The amount to advance simulated time after each user instructions is
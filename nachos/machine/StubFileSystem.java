@@ -67,7 +67,7 @@ public class StubFileSystem implements FileSystem {
     private void delay() {
 	long time = Machine.timer().getTime();
 	int amount = 1000;
-	ThreadedKernel.alarm.waitUntil(amount);
+	ThreadedKernel.alarm.waitForDevice(amount);
 	Lib.assertTrue(Machine.timer().getTime() >= time+amount);
     }
 
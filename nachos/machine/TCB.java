@@ -5,7 +5,12 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +19,25 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * If the configuration key <tt>TCB.virtualThreads</tt> is <tt>true</tt>, the
+ * JVM threads are virtual threads rather than platform threads. This makes
+ * TCBs much cheaper to create and to switch between, so the limit on the
+ * number of running TCBs is raised from <tt>maxThreads</tt> to
+ * <tt>maxVirtualThreads</tt>. Either limit can be overridden with
+ * <tt>TCB.maxThreads</tt>. Virtual threads need a Java 21 or later JVM.
+ *
+ * <p>
+ * The configuration key <tt>TCB.handoff</tt> selects how a TCB waits for
+ * its turn to run: <tt>monitor</tt> (the default for platform threads)
+ * waits on the TCB's monitor, <tt>park</tt> parks the Java thread, and
+ * <tt>spin</tt> spins briefly before parking. Virtual threads always park.
+ *
+ * <p>
+ * When a TCB is destroyed, its Java thread is kept in a pool of idle threads
+ * (up to <tt>TCB.poolSize</tt> of them), and the next TCB to start reuses it
+ * instead of creating a new Java thread.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +64,62 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	useVirtualThreads = Config.getBoolean("TCB.virtualThreads", false);
+	if (useVirtualThreads) {
+	    try {
+		virtualThreadBuilder =
+		    Thread.class.getMethod("ofVirtual").invoke(null);
+		newVirtualThread =
+		    Class.forName("java.lang.Thread$Builder")
+		    .getMethod("unstarted", new Class[] { Runnable.class });
+
+		/* Only one TCB runs at a time, so one carrier thread is
+		 * enough. Fixing the pool at one carrier also keeps the
+		 * scheduler from adding carriers when a virtual thread blocks
+		 * on I/O, which it would do without our privilege. Start the
+		 * scheduler now, before the security manager is enabled.
+		 */
+		System.setProperty("jdk.virtualThreadScheduler.parallelism",
+				   "1");
+		System.setProperty("jdk.virtualThreadScheduler.maxPoolSize",
+				   "1");
+
+		Thread warmup = newJavaThread(new Runnable() {
+			public void run() { }
+		    });
+		warmup.start();
+		warmup.join();
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("TCB.virtualThreads requires Java 21");
+	    }
+	}
+
+	String handoffName = Config.getString("TCB.handoff",
+					      useVirtualThreads ? "park" : "monitor");
+	if (handoffName.equals("monitor")) {
+	    Lib.assertTrue(!useVirtualThreads,
+			   "virtual threads cannot use monitor handoff");
+	    useMonitor = true;
+	}
+	else if (handoffName.equals("spin")) {
+	    // spinning only helps if the waker can run at the same time
+	    if (Runtime.getRuntime().availableProcessors() > 1)
+		spinLimit = maxSpins;
+	}
+	else {
+	    Lib.assertTrue(handoffName.equals("park"),
+			   "bad value for TCB.handoff");
+	}
+
+	int poolSize = Config.getInteger("TCB.poolSize", defaultPoolSize);
+	if (poolSize > 0)
+	    idleHosts = new ArrayBlockingQueue<HostThread>(poolSize);
+
+	threadLimit = Config.getInteger("TCB.maxThreads",
+					useVirtualThreads ? maxVirtualThreads
+					: maxThreads);
     }
     
     /**
@@ -66,7 +146,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +166,41 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * We reuse an idle one if we can. Otherwise we have to make a new
+	     * one, and creating Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
-
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    final HostThread host = (idleHosts != null) ? idleHosts.poll()
+		: null;
+
+	    /* The Java thread isn't running this TCB yet, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off
+	     * the current TCB, handing this TCB to the idle thread (or
+	     * starting a new Java thread), and waiting for it to wake us up
+	     * from threadroot(). Once the new TCB wakes us up, it's safe to
+	     * context switch to the new TCB.
 	     */
-	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+	    if (host != null) {
+		javaThread = host.thread;
+		currentTCB.running = false;
+
+		host.assign(this);
+	    }
+	    else {
+		final HostThread newHost = new HostThread(this);
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    newHost.thread = newJavaThread(newHost);
+			}
+		    });
+
+		javaThread = newHost.thread;
+		currentTCB.running = false;
+
+		javaThread.start();
+	    }
+
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -244,15 +339,24 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Virtual threads are daemon threads, so the JVM would exit as
+	     * soon as the first TCB's thread returned. Keep that thread around
+	     * until Nachos exits.
+	     */
+	    if (isFirstTCB && useVirtualThreads) {
+		while (true)
+		    LockSupport.park();
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(1);
 	    else
@@ -280,29 +384,112 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * The body of a Java thread that runs TCBs. When the TCB it is running
+     * is destroyed, <tt>threadroot()</tt> returns, and the thread offers
+     * itself to the idle pool. If the pool has room, the thread waits there
+     * until <tt>start()</tt> hands it another TCB to run; otherwise it
+     * exits.
+     */
+    private static class HostThread implements Runnable {
+	HostThread(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void run() {
+	    while (true) {
+		tcb.threadroot();
+
+		tcb = null;
+		if (idleHosts == null || !idleHosts.offer(this))
+		    return;
+
+		while (tcb == null)
+		    LockSupport.park(this);
+	    }
+	}
+
+	/**
+	 * Give this idle thread a TCB to run.
+	 *
+	 * @param	tcb	the TCB to run.
+	 */
+	void assign(TCB tcb) {
+	    this.tcb = tcb;
+	    LockSupport.unpark(thread);
+	}
+
+	Thread thread;
+	volatile TCB tcb;
+    }
+
+    /**
+     * Create the Java thread that will run a new TCB. Must be called with
+     * privilege.
+     *
+     * @param	target	the closure the thread should run.
+     * @return	a new, unstarted Java thread.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private static Thread newJavaThread(Runnable target) {
+	if (!useVirtualThreads)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) newVirtualThread.invoke(virtualThreadBuilder,
+						    new Object[] { target });
+	}
+	catch (Exception e) {
+	    throw new Error("could not create virtual thread", e);
 	}
     }
 
+    /**
+     * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>.
+     * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+     * for its turn to run. This includes the ping-pong process of starting
+     * and destroying TCBs, as well as in context switching from this TCB to
+     * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+     * <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * Normally the Java thread parks until <tt>interrupt()</tt> unparks it,
+     * possibly after spinning for a while in case the wake-up comes soon.
+     * With monitor handoff, it waits on the monitor bound to this TCB.
+     */
+    private void waitForInterrupt() {
+	if (useMonitor) {
+	    synchronized (this) {
+		while (!running) {
+		    try { wait(); }
+		    catch (InterruptedException e) { }
+		}
+	    }
+	    return;
+	}
+
+	for (int i=0; i<spinLimit && !running; i++)
+	    ;
+
+	while (!running)
+	    LockSupport.park(this);
+    }
+
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking its thread (or signalling the monitor bound to it). Used
+     * in the ping-pong process of starting and destroying TCBs, as well as in
+     * context switching to this TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (useMonitor) {
+	    synchronized (this) {
+		running = true;
+		notify();
+	    }
+	    return;
+	}
+
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -328,10 +515,17 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, unless <tt>TCB.maxThreads</tt> says otherwise.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when they run on virtual threads, unless
+     * <tt>TCB.maxThreads</tt> says otherwise.
+     */
+    public static final int maxVirtualThreads = 65536;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -348,18 +542,36 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+     * A set containing all <i>running</i> TCB objects. It is initialized to
+     * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
      * added only in <tt>start(Runnable)</tt>, which can only be invoked once
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * the first TCB is created, this set is basically never empty. A dying
+     * TCB removes itself after waking its destroyer, so access must be
+     * synchronized.
+     */
+    private static Set<TCB> runningThreads =
+	Collections.synchronizedSet(new HashSet<TCB>());
+
+    private static int threadLimit = maxThreads;
+    private static boolean useVirtualThreads = false;
+    private static boolean useMonitor = false;
+    private static int spinLimit = 0;
+    private static final int maxSpins = 10000;
+
+    /**
+     * Idle Java threads, waiting for <tt>start()</tt> to give them a TCB to
+     * run, or <tt>null</tt> if pooling is disabled.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static ArrayBlockingQueue<HostThread> idleHosts = null;
+    private static final int defaultPoolSize = 32;
+    private static Object virtualThreadBuilder;
+    private static Method newVirtualThread;
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -388,7 +600,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +612,6 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -22,13 +22,13 @@ public class PostOffice {
      * "postal worker" thread.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
-	messageSent = new Semaphore(0);
+	messageReceived = new Semaphore(0, true);
+	messageSent = new Semaphore(0, true);
 	sendLock = new Lock();
 
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new SynchList(true);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
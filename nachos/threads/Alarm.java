@@ -22,28 +22,51 @@ public class Alarm {
     	Machine.timer().setInterruptHandler(new Runnable() {
     		public void run() { timerInterrupt(); }
 	    });
+
+    	dumpInterval = Config.getInteger("Alarm.dumpInterval", 0);
+    	nextDump = dumpInterval;
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). If the current
+     * thread's time slice has expired, causes it to yield, forcing a context
+     * switch if there is another thread that should be run.
+     *
+     * <p>
+     * Slices can only end on a timer interrupt, so a thread's quantum is
+     * rounded to the nearest interrupt: the thread is preempted once less
+     * than half a timer period of its quantum remains.
+     *
+     * @see	nachos.threads.Scheduler#getQuantum
      */
     public void timerInterrupt() {
     	WaitingType w = waitingQueue.peek();
 
     	while (w != null && Machine.timer().getTime() >= w.wakeupTime) {
-    		Semaphore sem = w.sem;
-    			
-    		lock.acquire();
     		waitingQueue.poll();
+
+    		if (w.sem != null)
+    			w.sem.V();
+    		else
+    			w.handler.run();
+
     		w = waitingQueue.peek();
-    		lock.release();
-    			
-    		sem.V();
     	}
-    	KThread.currentThread().yield();
+    	
+    	if (dumpInterval > 0 && Machine.timer().getTime() >= nextDump &&
+    			Lib.test(KThread.dbgWaitGraph)) {
+    		KThread.dumpThreads();
+    		nextDump = Machine.timer().getTime() + dumpInterval;
+    	}
+
+    	KThread thread = KThread.currentThread();
+    	long ran = Machine.timer().getTime() - thread.getDispatchTime();
+    	if (ran + Stats.TimerTicks/2 >= ThreadedKernel.scheduler.getQuantum(thread) ||
+    			ThreadedKernel.scheduler.shouldPreempt(thread)) {
+    		Machine.interrupt().handlerFinished();
+    		KThread.yield();
+    	}
     }
 
     /**
@@ -61,29 +84,128 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
+    	waitUntil(x, false);
+    }
+
+    /**
+     * Put the current thread to sleep for at least <i>x</i> ticks while a
+     * simulated device completes, like <tt>waitUntil()</tt>, but give the
+     * thread the scheduler's I/O boost when it wakes.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     *
+     * @see	nachos.threads.Scheduler#boostAfterIO
+     */
+    public void waitForDevice(long x) {
+    	waitUntil(x, true);
+    }
+
+    private void waitUntil(long x, boolean device) {
 	// for now, cheat just to get something working (busy waiting is bad)
     	long wakeTime = Machine.timer().getTime() + x;
-    	WaitingType w = new WaitingType(wakeTime , new Semaphore(0));
+    	WaitingType w = new WaitingType(wakeTime , new Semaphore(0, device));
     	
-    	lock.acquire();
+    	boolean intStatus = Machine.interrupt().disable();
     	waitingQueue.add(w);
-    	lock.release();
+    	Machine.interrupt().restore(intStatus);
     	
     	w.sem.P();
     }
+
+    /**
+     * Run the specified handler in the timer interrupt handler, with
+     * interrupts disabled, during the first timer interrupt at least <i>x</i>
+     * ticks from now, unless it is cancelled first. The handler must not
+     * block.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	handler	the handler to run.
+     * @return	a timeout that can be passed to <tt>cancel()</tt>.
+     */
+    public WaitingType schedule(long x, Runnable handler) {
+    	long wakeTime = Machine.timer().getTime() + x;
+    	WaitingType w = new WaitingType(wakeTime , handler);
+
+    	boolean intStatus = Machine.interrupt().disable();
+    	waitingQueue.add(w);
+    	Machine.interrupt().restore(intStatus);
+
+    	return w;
+    }
+
+    /**
+     * Cancel a handler passed to <tt>schedule()</tt>, if it has not run yet.
+     *
+     * @param	w	the timeout returned by <tt>schedule()</tt>.
+     * @return	<tt>true</tt> if the handler had not run yet, and now never
+     *		will.
+     */
+    public boolean cancel(WaitingType w) {
+    	boolean intStatus = Machine.interrupt().disable();
+    	boolean pending = waitingQueue.remove(w);
+    	Machine.interrupt().restore(intStatus);
+
+    	return pending;
+    }
+    
+    /**
+     * Put the current thread to sleep waiting for access to the specified
+     * queue, giving up after at least <i>x</i> ticks. Used in place of
+     * <tt>waitForAccess()</tt> and <tt>KThread.sleep()</tt>, with interrupts
+     * disabled. A thread that gives up is removed from the queue.
+     *
+     * @param	queue	the queue to wait on.
+     * @param	x	the minimum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was given access, or
+     *		<tt>false</tt> if it gave up.
+     */
+    boolean waitForAccess(final ThreadQueue queue, long x) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	final KThread thread = KThread.currentThread();
+    	final boolean[] timedOut = new boolean[1];
+
+    	queue.waitForAccess(thread);
+    	WaitingType w = schedule(x, new Runnable() {
+    			public void run() {
+    				if (queue.remove(thread)) {
+    					timedOut[0] = true;
+    					thread.ready();
+    				}
+    			}
+    		});
+
+    	KThread.sleep();
+    	cancel(w);
+
+    	return !timedOut[0];
+    }
     
     public class WaitingType {
     	long wakeupTime;
     	Semaphore sem;
+    	/** Run instead of signalling <tt>sem</tt> if it is <tt>null</tt>. */
+    	Runnable handler;
     	
     	WaitingType(long wakeupTime , Semaphore sem) {
     		this.wakeupTime = wakeupTime;
     		this.sem = sem;
     	}
+
+    	WaitingType(long wakeupTime , Runnable handler) {
+    		this.wakeupTime = wakeupTime;
+    		this.handler = handler;
+    	}
     }
     
-    private Lock lock = new Lock();
-    
+    /** Ticks between thread dumps when the <tt>w</tt> flag is set. */
+    private int dumpInterval;
+    private long nextDump;
+
+    /**
+     * The threads waiting and handlers scheduled, by wake-up time. Guarded by
+     * disabling interrupts, since the timer interrupt handler uses it.
+     */
     private PriorityQueue<WaitingType> waitingQueue =
     		new PriorityQueue<WaitingType>(1 , new Comparator() {
     			@Override
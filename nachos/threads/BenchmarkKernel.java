@@ -0,0 +1,432 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A kernel that runs a suite of synthetic workloads under each of a list of
+ * schedulers, and prints one line of results per scheduler and workload.
+ *
+ * <p>
+ * The schedulers are named, separated by commas, by
+ * <tt>BenchmarkKernel.schedulers</tt>; by default every scheduler in this
+ * package is run. Each workload runs for <tt>BenchmarkKernel.ticks</tt>
+ * ticks. The workloads are:
+ *
+ * <ul>
+ * <li><tt>cpu</tt>: threads that never block.
+ * <li><tt>io</tt>: threads that sleep on the alarm and wake to do a little
+ * work, alongside threads that never block. The latency is how long after
+ * its wake-up time a sleeper gets to run.
+ * <li><tt>convoy</tt>: threads that repeatedly take a lock and yield while
+ * holding it. The latency is how long a thread waits for the lock.
+ * <li><tt>inversion</tt>: a low priority thread that holds a lock across
+ * timer interrupts, medium priority threads that never block, and a high priority
+ * thread that periodically takes the lock. The latency is how long the high
+ * priority thread waits for the lock.
+ * <li><tt>pipeline</tt>: a producer, a middle stage, and a consumer,
+ * connected by queues. The latency is the time from production to
+ * consumption of each item.
+ * </ul>
+ *
+ * <p>
+ * Each result line has the form
+ *
+ * <p><blockquote><tt>
+ * benchmark scheduler=<i>name</i> workload=<i>name</i> ticks=<i>n</i>
+ * throughput=<i>x</i> switches=<i>n</i> [jain=<i>x</i>]
+ * [p50=<i>n</i> p90=<i>n</i> p99=<i>n</i> max=<i>n</i>]
+ * </tt></blockquote>
+ *
+ * <p>
+ * where <tt>throughput</tt> is units of work per 1000 ticks,
+ * <tt>switches</tt> is the number of times the workload's threads were
+ * dispatched, <tt>jain</tt> is Jain's fairness index over the work done by
+ * threads that should get equal shares, and the percentiles are of the
+ * workload's latency, in ticks.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchmarkKernel() {
+	super();
+    }
+
+    /**
+     * Initialize this kernel.
+     */
+    public void initialize(String[] args) {
+	super.initialize(args);
+
+	duration = Config.getInteger("BenchmarkKernel.ticks", 20000);
+	Lib.assertTrue(duration > 0);
+    }
+
+    /**
+     * The benchmarks replace the kernel self tests.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run every workload under every scheduler.
+     */
+    public void run() {
+	String[] names =
+	    Config.getString("BenchmarkKernel.schedulers",
+			     defaultSchedulers).split(",");
+
+	for (int i=0; i<names.length; i++) {
+	    String name = names[i].trim();
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    KThread.changeScheduler((Scheduler) Lib.constructObject(name));
+	    alarm = new Alarm();
+	    scheduler.setPriority(KThread.currentThread(), high);
+	    Machine.interrupt().restore(intStatus);
+
+	    schedulerName = name.substring(name.lastIndexOf('.') + 1);
+
+	    cpu();
+	    io();
+	    convoy();
+	    inversion();
+	    pipeline();
+	}
+    }
+
+    /**
+     * Threads that never block.
+     */
+    private void cpu() {
+	final long[] work = new long[4];
+	KThread[] threads = new KThread[work.length];
+
+	for (int i=0; i<threads.length; i++) {
+	    final int which = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!stop)
+			    work[which] += burn(1);
+		    }
+		});
+	}
+
+	long ticks = runFor(threads, "cpu");
+	report("cpu", ticks, sum(work), threads, jain(work), null);
+    }
+
+    /**
+     * Threads that sleep and wake, alongside threads that never block.
+     */
+    private void io() {
+	final Sample latency = new Sample();
+	final long[] work = new long[2];
+	KThread[] threads = new KThread[4 + work.length];
+
+	for (int i=0; i<4; i++) {
+	    final long interval = Stats.TimerTicks * (1 + i % 3);
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!stop) {
+			    long wake = Machine.timer().getTime() + interval;
+			    alarm.waitUntil(interval);
+			    latency.add(Machine.timer().getTime() - wake);
+			    burn(3);
+			}
+		    }
+		});
+	}
+	for (int i=0; i<work.length; i++) {
+	    final int which = i;
+	    threads[4 + i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!stop)
+			    work[which] += burn(1);
+		    }
+		});
+	}
+
+	long ticks = runFor(threads, "io");
+	report("io", ticks, sum(work), threads, jain(work), latency);
+    }
+
+    /**
+     * Threads that contend for a lock, holding it across a yield.
+     */
+    private void convoy() {
+	final Lock lock = new Lock();
+	final Sample latency = new Sample();
+	final long[] work = new long[6];
+	KThread[] threads = new KThread[work.length];
+
+	for (int i=0; i<threads.length; i++) {
+	    final int which = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!stop) {
+			    long start = Machine.timer().getTime();
+			    lock.acquire();
+			    latency.add(Machine.timer().getTime() - start);
+			    burn(1);
+			    KThread.yield();
+			    burn(1);
+			    lock.release();
+			    burn(1);
+			    work[which]++;
+			}
+		    }
+		});
+	}
+
+	long ticks = runFor(threads, "convoy");
+	report("convoy", ticks, sum(work), threads, jain(work), latency);
+    }
+
+    /**
+     * A high priority thread that needs a lock held by a low priority thread,
+     * while medium priority threads compete for the processor.
+     */
+    private void inversion() {
+	final Lock lock = new Lock();
+	final Sample latency = new Sample();
+	final long[] work = new long[1];
+	KThread[] threads = new KThread[4];
+
+	threads[0] = new KThread(new Runnable() {
+		public void run() {
+		    while (!stop) {
+			lock.acquire();
+			burn(2 * Stats.TimerTicks / 10);
+			lock.release();
+			KThread.yield();
+		    }
+		}
+	    });
+	for (int i=1; i<3; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!stop)
+			    burn(1);
+		    }
+		});
+	}
+	threads[3] = new KThread(new Runnable() {
+		public void run() {
+		    while (!stop) {
+			alarm.waitUntil(Stats.TimerTicks);
+			long start = Machine.timer().getTime();
+			lock.acquire();
+			latency.add(Machine.timer().getTime() - start);
+			lock.release();
+			work[0]++;
+		    }
+		}
+	    });
+
+	boolean intStatus = Machine.interrupt().disable();
+	scheduler.setPriority(threads[0], low);
+	scheduler.setPriority(threads[1], medium);
+	scheduler.setPriority(threads[2], medium);
+	scheduler.setPriority(threads[3], high);
+	Machine.interrupt().restore(intStatus);
+
+	long ticks = runFor(threads, "inversion");
+	report("inversion", ticks, work[0], threads, -1, latency);
+    }
+
+    /**
+     * A producer, a middle stage, and a consumer connected by queues, with
+     * at most eight items in flight.
+     */
+    private void pipeline() {
+	final SynchList first = new SynchList();
+	final SynchList second = new SynchList();
+	final Semaphore credits = new Semaphore(8);
+	final Sample latency = new Sample();
+	final long[] work = new long[1];
+	KThread[] threads = new KThread[3];
+
+	threads[0] = new KThread(new Runnable() {
+		public void run() {
+		    while (!stop) {
+			credits.P();
+			first.add(Long.valueOf(Machine.timer().getTime()));
+			burn(1);
+		    }
+		    first.add(endOfStream);
+		}
+	    });
+	threads[1] = new KThread(new Runnable() {
+		public void run() {
+		    Object item;
+		    do {
+			item = first.removeFirst();
+			burn(2);
+			second.add(item);
+		    } while (item != endOfStream);
+		}
+	    });
+	threads[2] = new KThread(new Runnable() {
+		public void run() {
+		    Object item;
+		    while ((item = second.removeFirst()) != endOfStream) {
+			latency.add(Machine.timer().getTime() -
+				    ((Long) item).longValue());
+			burn(1);
+			credits.V();
+			work[0]++;
+		    }
+		}
+	    });
+
+	long ticks = runFor(threads, "pipeline");
+	report("pipeline", ticks, work[0], threads, -1, latency);
+    }
+
+    /**
+     * Fork the specified threads, let them run for the benchmark duration,
+     * then tell them to stop and wait for them to finish.
+     *
+     * @return	the number of ticks the threads ran before being told to stop.
+     */
+    private long runFor(KThread[] threads, String workload) {
+	stop = false;
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].setName(workload + " " + i);
+
+	long start = Machine.timer().getTime();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+
+	alarm.waitUntil(duration);
+
+	stop = true;
+	long ticks = Machine.timer().getTime() - start;
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	return ticks;
+    }
+
+    /**
+     * Print one result line.
+     *
+     * @param	jain	Jain's fairness index, or a negative number if it does
+     *			not apply.
+     * @param	latency	the latency sample, or <tt>null</tt> if there is none.
+     */
+    private void report(String workload, long ticks, long work,
+			KThread[] threads, double jain, Sample latency) {
+	long switches = 0;
+	for (int i=0; i<threads.length; i++)
+	    switches += threads[i].getNumDispatches();
+
+	String line = "benchmark scheduler=" + schedulerName
+	    + " workload=" + workload
+	    + " ticks=" + ticks
+	    + " throughput=" + format(work * 1000.0 / ticks)
+	    + " switches=" + switches;
+
+	if (jain >= 0)
+	    line += " jain=" + format(jain);
+
+	if (latency != null && latency.size > 0) {
+	    line += " p50=" + latency.percentile(0.50)
+		+ " p90=" + latency.percentile(0.90)
+		+ " p99=" + latency.percentile(0.99)
+		+ " max=" + latency.percentile(1.00);
+	}
+
+	System.out.println(line);
+    }
+
+    /**
+     * Use up the specified number of units of processor time, each the
+     * kernel time of one interrupt enable.
+     *
+     * @return	the number of units used.
+     */
+    private static int burn(int units) {
+	for (int i=0; i<units; i++) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+	return units;
+    }
+
+    private static long sum(long[] values) {
+	long sum = 0;
+	for (int i=0; i<values.length; i++)
+	    sum += values[i];
+	return sum;
+    }
+
+    /**
+     * Return Jain's fairness index of the specified values: 1 if they are all
+     * equal, down to <tt>1/n</tt> if one value has everything.
+     */
+    private static double jain(long[] values) {
+	double sum = 0, sumOfSquares = 0;
+	for (int i=0; i<values.length; i++) {
+	    sum += values[i];
+	    sumOfSquares += (double) values[i] * values[i];
+	}
+	if (sumOfSquares == 0)
+	    return 1;
+	return sum * sum / (values.length * sumOfSquares);
+    }
+
+    private static String format(double value) {
+	return Double.toString(Math.round(value * 1000) / 1000.0);
+    }
+
+    /**
+     * A growable sample of latencies.
+     */
+    private static class Sample {
+	void add(long value) {
+	    if (size == values.length)
+		values = Arrays.copyOf(values, size * 2);
+	    values[size++] = value;
+	}
+
+	/**
+	 * Return the smallest value that is at least the specified fraction
+	 * of the sample.
+	 */
+	long percentile(double fraction) {
+	    long[] sorted = Arrays.copyOf(values, size);
+	    Arrays.sort(sorted);
+	    int index = (int) Math.ceil(fraction * size) - 1;
+	    return sorted[Math.max(0, Math.min(size - 1, index))];
+	}
+
+	long[] values = new long[64];
+	int size = 0;
+    }
+
+    private static final String defaultSchedulers =
+	"nachos.threads.RoundRobinScheduler,"
+	+ "nachos.threads.PriorityScheduler,"
+	+ "nachos.threads.LotteryScheduler,"
+	+ "nachos.threads.StrideScheduler,"
+	+ "nachos.threads.MLFQScheduler,"
+	+ "nachos.threads.FairScheduler,"
+	+ "nachos.threads.DeadlineScheduler,"
+	+ "nachos.threads.GroupScheduler";
+
+    /** Priorities valid under every scheduler that uses them. */
+    private static final int low = 1, medium = 4, high = 7;
+
+    /** The item that ends the stream of timestamps through the pipeline. */
+    private static final Object endOfStream = new Object();
+
+    private int duration;
+    private String schedulerName;
+    private volatile boolean stop;
+}
@@ -2,8 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
  * An implementation of condition variables built upon semaphores.
  *
@@ -60,8 +58,22 @@ public class Condition {
      */
     public Condition(Lock conditionLock) {
 	this.conditionLock = conditionLock;
+    }
 
-	waitQueue = new LinkedList<Semaphore>();
+    /**
+     * Allocate a new condition variable whose waiters may be waiting for a
+     * device.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	device		<tt>true</tt> if this condition is signalled
+     *				when a device completes, in which case
+     *				threads it wakes are given the scheduler's
+     *				I/O boost.
+     */
+    public Condition(Lock conditionLock, boolean device) {
+	this(conditionLock);
+	this.device = device;
     }
 
     /**
@@ -71,19 +83,30 @@ public class Condition {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      *
      * <p>
-     * This implementation uses semaphores to implement this, by allocating a
-     * semaphore for each waiting thread. The waker will <tt>V()</tt> this
+     * This implementation uses semaphores to implement this, by giving each
+     * waiting thread a semaphore of its own. The waker will <tt>V()</tt> this
      * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-     * though the lock is released before caling <tt>P()</tt>.
+     * though the lock is released before caling <tt>P()</tt>. The semaphore
+     * is allocated the first time a thread sleeps and kept for its later
+     * sleeps, and the thread itself links the wait list, so sleeping
+     * allocates nothing after that.
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
-	waitQueue.add(waiter);
+	KThread thread = KThread.currentThread();
+	if (thread.waiter == null)
+	    thread.waiter = new Semaphore(0);
+
+	thread.nextWaiter = null;
+	if (lastWaiter == null)
+	    firstWaiter = thread;
+	else
+	    lastWaiter.nextWaiter = thread;
+	lastWaiter = thread;
 
 	conditionLock.release();
-	waiter.P();
+	thread.waiter.P();
 	conditionLock.acquire();	
     }
 
@@ -94,8 +117,15 @@ public class Condition {
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	if (!waitQueue.isEmpty())
-	    ((Semaphore) waitQueue.removeFirst()).V();
+	KThread thread = firstWaiter;
+	if (thread != null) {
+	    firstWaiter = thread.nextWaiter;
+	    if (firstWaiter == null)
+		lastWaiter = null;
+	    thread.nextWaiter = null;
+
+	    thread.waiter.V(device);
+	}
     }
 
     /**
@@ -105,10 +135,16 @@ public class Condition {
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	while (!waitQueue.isEmpty())
+	while (firstWaiter != null)
 	    wake();
     }
 
     private Lock conditionLock;
-    private LinkedList<Semaphore> waitQueue;
+    private boolean device = false;
+    /**
+     * The threads sleeping on this condition variable, in the order they
+     * began sleeping, linked through <tt>KThread.nextWaiter</tt>.
+     */
+    private KThread firstWaiter = null;
+    private KThread lastWaiter = null;
 }
@@ -2,8 +2,6 @@
 //PART OF THE NACHOS. DON'T CHANGE CODE OF THIS LINE
 package nachos.threads;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 
 /**
@@ -26,7 +24,6 @@ public class Condition2 {
      */
     public Condition2(Lock conditionLock) {
     	this.conditionLock = conditionLock;
-    	this.waitThreads = new LinkedList<KThread>();
     }
 
     /**
@@ -42,7 +39,7 @@ public class Condition2 {
     	
     	boolean intStatus = Machine.interrupt().disable();
     	
-    	waitThreads.add(KThread.currentThread());
+    	addWaiter(KThread.currentThread());
     	KThread.sleep();
     	
     	Machine.interrupt().restore(intStatus);  	
@@ -51,6 +48,45 @@ public class Condition2 {
     	
     }
 
+    /**
+     * Atomically release the associated lock and go to sleep on this condition
+     * variable until another thread wakes it using <tt>wake()</tt>, or until
+     * at least <i>timeout</i> ticks have passed. The current thread must hold
+     * the associated lock. The thread will automatically reacquire the lock
+     * before <tt>sleepFor()</tt> returns.
+     *
+     * @param	timeout	the minimum number of clock ticks to sleep.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if it timed out.
+     */
+    public boolean sleepFor(long timeout) {
+    	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+    	
+    	conditionLock.release();
+    	
+    	boolean intStatus = Machine.interrupt().disable();
+    	
+    	final KThread thread = KThread.currentThread();
+    	final boolean[] timedOut = new boolean[1];
+    	addWaiter(thread);
+    	Alarm.WaitingType timer = ThreadedKernel.alarm.schedule(timeout,
+    		new Runnable() {
+    			public void run() {
+    				if (removeWaiter(thread)) {
+    					timedOut[0] = true;
+    					thread.ready();
+    				}
+    			}
+    		});
+    	KThread.sleep();
+    	ThreadedKernel.alarm.cancel(timer);
+    	
+    	Machine.interrupt().restore(intStatus);
+    	
+    	conditionLock.acquire();
+    	return !timedOut[0];
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -60,9 +96,13 @@ public class Condition2 {
     	
     	boolean intStatus = Machine.interrupt().disable();
     	
-    	KThread nextThread = null;
-    	if (!waitThreads.isEmpty())
-    		nextThread = waitThreads.removeFirst();
+    	KThread nextThread = firstWaiter;
+    	if (nextThread != null) {
+    		firstWaiter = nextThread.nextWaiter;
+    		if (firstWaiter == null)
+    			lastWaiter = null;
+    		nextThread.nextWaiter = null;
+    	}
     	
     	if (nextThread != null)
     		nextThread.ready();
@@ -77,11 +117,53 @@ public class Condition2 {
     public void wakeAll() {
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-    	while (!waitThreads.isEmpty()) {
+    	while (firstWaiter != null) {
     		wake();
     	}
     }
 
     private Lock conditionLock;
-    private LinkedList<KThread> waitThreads;
+    /**
+     * Append a thread to the wait list. The thread itself is the node of the
+     * list.
+     */
+    private void addWaiter(KThread thread) {
+    	thread.nextWaiter = null;
+    	if (lastWaiter == null)
+    		firstWaiter = thread;
+    	else
+    		lastWaiter.nextWaiter = thread;
+    	lastWaiter = thread;
+    }
+
+    /**
+     * Unlink a thread whose sleep timed out from the wait list.
+     *
+     * @return	<tt>true</tt> if the thread was on the list, or
+     *		<tt>false</tt> if it had already been woken.
+     */
+    private boolean removeWaiter(KThread thread) {
+    	KThread previous = null;
+    	for (KThread t = firstWaiter; t != null; t = t.nextWaiter) {
+    		if (t == thread) {
+    			if (previous == null)
+    				firstWaiter = t.nextWaiter;
+    			else
+    				previous.nextWaiter = t.nextWaiter;
+    			if (lastWaiter == t)
+    				lastWaiter = previous;
+    			t.nextWaiter = null;
+    			return true;
+    		}
+    		previous = t;
+    	}
+    	return false;
+    }
+
+    /**
+     * The threads sleeping on this condition variable, in the order they
+     * began sleeping, linked through <tt>KThread.nextWaiter</tt>.
+     */
+    private KThread firstWaiter = null;
+    private KThread lastWaiter = null;
 }
@@ -0,0 +1,429 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+/**
+ * An earliest-deadline-first scheduler for periodic real-time threads.
+ *
+ * <p>
+ * A thread becomes a real-time thread by declaring, through
+ * <tt>setDeadline()</tt>, its period, its relative deadline, and the most
+ * ticks it needs to run in each period. The thread then runs one job per
+ * period, calling <tt>waitForNextPeriod()</tt> at the end of each; the alarm
+ * releases the next job at the start of the next period. Each job must
+ * finish within its relative deadline of its release, and jobs that finish
+ * late are counted in the machine's statistics.
+ *
+ * <p>
+ * The next thread to be dequeued is always the real-time thread whose current
+ * job has the earliest deadline. Other threads are best-effort: they are
+ * dequeued in FIFO order, and only when no real-time thread is waiting, so
+ * they run in the slack left by the real-time threads. A released job with an
+ * earlier deadline than the running thread preempts it at the next timer
+ * interrupt.
+ *
+ * <p>
+ * <tt>setDeadline()</tt> rejects a thread if admitting it would let the total
+ * density of the real-time threads (each thread's cost divided by the lesser
+ * of its deadline and period) exceed 1, since EDF can then no longer
+ * guarantee every deadline.
+ *
+ * <p>
+ * This scheduler does not transfer priority.
+ */
+public class DeadlineScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public DeadlineScheduler() {
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param	transferPriority	ignored; this scheduler does not
+     *					transfer priority.
+     * @return	a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue();
+    }
+
+    /**
+     * Make the specified thread a periodic real-time thread, if the existing
+     * real-time threads can still meet their deadlines with it. Its first
+     * job is released now. Must be called with interrupts disabled.
+     *
+     * @param	thread		the thread.
+     * @param	period		the ticks between releases of its jobs.
+     * @param	deadline	the ticks after each release by which the job
+     *				must finish.
+     * @param	cost		the most ticks each job needs to run.
+     * @return	<tt>true</tt> if the thread was admitted, or <tt>false</tt> if
+     *		it was rejected and is still a best-effort thread.
+     */
+    public boolean setDeadline(KThread thread, long period, long deadline,
+			       long cost) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(period > 0 && deadline > 0 && cost > 0);
+
+	ThreadState state = getThreadState(thread);
+	Lib.assertTrue(!state.realTime);
+
+	double density = (double) cost / Math.min(deadline, period);
+	if (totalDensity + density > 1.0) {
+	    Lib.debug(dbgDeadline, "Rejected " + thread + ": density "
+		      + (totalDensity + density));
+	    return false;
+	}
+
+	totalDensity += density;
+
+	DeadlineQueue waitQueue = state.waitQueue;
+	if (waitQueue != null)
+	    waitQueue.remove(state);
+
+	state.realTime = true;
+	state.period = period;
+	state.relativeDeadline = deadline;
+	state.density = density;
+	state.release = Machine.timer().getTime();
+	state.deadline = state.release + deadline;
+
+	if (waitQueue != null)
+	    waitQueue.add(state);
+
+	return true;
+    }
+
+    /**
+     * Make the specified thread a best-effort thread again, releasing its
+     * share of the processor. Must be called with interrupts disabled.
+     *
+     * @param	thread	a real-time thread.
+     */
+    public void clearDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	Lib.assertTrue(state.realTime);
+
+	DeadlineQueue waitQueue = state.waitQueue;
+	if (waitQueue != null)
+	    waitQueue.remove(state);
+
+	state.realTime = false;
+	totalDensity -= state.density;
+
+	if (waitQueue != null)
+	    waitQueue.add(state);
+    }
+
+    /**
+     * Finish the current thread's job for this period, and sleep until the
+     * next job is released. Counts the job as met or missed in the machine's
+     * statistics. If the next release has already passed, returns
+     * immediately.
+     *
+     * @return	<tt>true</tt> if the finished job met its deadline.
+     */
+    public boolean waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	Lib.assertTrue(state.realTime);
+
+	long now = Machine.timer().getTime();
+	boolean met = now <= state.deadline;
+	Machine.recordDeadline(met);
+	if (!met) {
+	    state.misses++;
+	    Lib.debug(dbgDeadline, KThread.currentThread() + " missed deadline "
+		      + state.deadline + " by " + (now - state.deadline));
+	}
+
+	state.release += state.period;
+	state.deadline = state.release + state.relativeDeadline;
+	long wait = state.release - now;
+
+	Machine.interrupt().restore(intStatus);
+
+	if (wait > 0)
+	    ThreadedKernel.alarm.waitUntil(wait);
+
+	return met;
+    }
+
+    /**
+     * Return the number of jobs of the specified thread that have missed
+     * their deadlines.
+     *
+     * @param	thread	a thread.
+     * @return	the number of missed deadlines.
+     */
+    public int getDeadlineMisses(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).misses;
+    }
+
+    /**
+     * Return a quantum too long to expire for a real-time thread, which runs
+     * until it finishes its job or is preempted by an earlier deadline.
+     */
+    public int getQuantum(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (getThreadState(thread).realTime)
+	    return Integer.MAX_VALUE;
+
+	return defaultQuantum;
+    }
+
+    /**
+     * Preempt the running thread if a real-time thread with an earlier
+     * deadline is ready.
+     *
+     * @param	thread	the running thread.
+     * @return	<tt>true</tt> if the running thread should yield now.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	DeadlineQueue readyQueue = (DeadlineQueue) KThread.getReadyQueue();
+	if (readyQueue.realTime.isEmpty())
+	    return false;
+
+	ThreadState state = getThreadState(thread);
+	return !state.realTime ||
+	    readyQueue.realTime.first().deadline < state.deadline;
+    }
+
+    public ThreadQueue getWaitQueue(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).waitQueue;
+    }
+
+    /**
+     * Test that an admissible set of periodic threads meets every deadline
+     * while a best-effort thread runs in the slack, and that a thread that
+     * would overload the processor is rejected.
+     */
+    public static void selfTest() {
+	final DeadlineScheduler scheduler =
+	    (DeadlineScheduler) ThreadedKernel.scheduler;
+	final int jobs = 6;
+	final boolean[] done = new boolean[1];
+
+	long[][] tasks = {
+	    { 8 * Stats.TimerTicks, 8 * Stats.TimerTicks, 2 * Stats.TimerTicks },
+	    { 12 * Stats.TimerTicks, 10 * Stats.TimerTicks, 3 * Stats.TimerTicks }
+	};
+	KThread[] threads = new KThread[tasks.length];
+
+	KThread background = new KThread(new Runnable() {
+		public void run() {
+		    while (!done[0]) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		    }
+		}
+	    }).setName("edf background");
+	background.fork();
+
+	for (int i=0; i<tasks.length; i++) {
+	    final long[] task = tasks[i];
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			KThread self = KThread.currentThread();
+			for (int j=0; j<jobs; j++) {
+			    long end = self.getRunTicks() + task[2];
+			    while (self.getRunTicks() < end) {
+				Machine.interrupt().disable();
+				Machine.interrupt().enable();
+			    }
+			    scheduler.waitForNextPeriod();
+			}
+		    }
+		}).setName("edf " + i);
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    Lib.assertTrue(scheduler.setDeadline(threads[i], task[0], task[1],
+						 task[2]));
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread overload = new KThread().setName("edf overload");
+	Lib.assertTrue(!scheduler.setDeadline(overload, 4 * Stats.TimerTicks,
+					      4 * Stats.TimerTicks,
+					      2 * Stats.TimerTicks));
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	intStatus = Machine.interrupt().disable();
+	done[0] = true;
+	for (int i=0; i<threads.length; i++) {
+	    System.out.println(threads[i].getName() + ": " + jobs + " jobs, "
+			       + scheduler.getDeadlineMisses(threads[i])
+			       + " missed");
+	    Lib.assertTrue(scheduler.getDeadlineMisses(threads[i]) == 0);
+	    scheduler.clearDeadline(threads[i]);
+	}
+	System.out.println(background.getName() + ": ran "
+			   + background.getRunTicks() + " ticks in the slack");
+	Lib.assertTrue(background.getRunTicks() > 0);
+	Machine.interrupt().restore(intStatus);
+
+	background.join();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /** The total density of the admitted real-time threads. */
+    private double totalDensity = 0;
+
+    private static final char dbgDeadline = 'e';
+
+    /**
+     * Orders real-time threads by the deadline of their current job, and
+     * threads with the same deadline by the time they started waiting.
+     */
+    private static final Comparator<ThreadState> byDeadline =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		if (a.deadline != b.deadline)
+		    return a.deadline < b.deadline ? -1 : 1;
+		return a.addTime < b.addTime ? -1 :
+		    a.addTime > b.addTime ? 1 : 0;
+	    }
+	};
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the real-time thread with the
+     * earliest deadline, or if there is none, the best-effort thread that has
+     * waited longest.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitQueue == null);
+
+	    state.addTime = counter++;
+	    state.waitQueue = this;
+	    add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state;
+	    if (!realTime.isEmpty())
+		state = realTime.pollFirst();
+	    else if (!bestEffort.isEmpty())
+		state = bestEffort.removeFirst();
+	    else
+		return null;
+
+	    state.waitQueue = null;
+	    return state.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    remove(state);
+	    state.waitQueue = null;
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator i=realTime.iterator(); i.hasNext(); ) {
+		ThreadState state = (ThreadState) i.next();
+		System.out.print(state.thread + " (deadline " + state.deadline
+				 + ") ");
+	    }
+	    for (Iterator i=bestEffort.iterator(); i.hasNext(); )
+		System.out.print(((ThreadState) i.next()).thread + " ");
+	}
+
+	void add(ThreadState state) {
+	    if (state.realTime)
+		realTime.add(state);
+	    else
+		bestEffort.add(state);
+	}
+
+	void remove(ThreadState state) {
+	    if (state.realTime)
+		Lib.assertTrue(realTime.remove(state));
+	    else
+		Lib.assertTrue(bestEffort.remove(state));
+	}
+
+	private TreeSet<ThreadState> realTime =
+	    new TreeSet<ThreadState>(byDeadline);
+	private LinkedList<ThreadState> bestEffort =
+	    new LinkedList<ThreadState>();
+	private int counter = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its period and deadline, if it is a
+     * real-time thread.
+     */
+    protected class ThreadState {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/** The thread with which this object is associated. */
+	KThread thread;
+	boolean realTime = false;
+	long period;
+	long relativeDeadline;
+	double density;
+	/** The release time of the current job. */
+	long release;
+	/** The absolute deadline of the current job. */
+	long deadline;
+	int misses = 0;
+	int addTime;
+	/** The queue the associated thread is waiting on, if any. */
+	DeadlineQueue waitQueue = null;
+    }
+}
@@ -0,0 +1,335 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler. Each thread accumulates <i>virtual
+ * runtime</i>: the ticks it has run, scaled down by its weight, which grows
+ * with its priority. The next thread to be dequeued is always the waiting
+ * thread with the least virtual runtime, so over time each thread receives
+ * processor time in proportion to its weight.
+ *
+ * <p>
+ * Waiting threads are kept in a balanced tree ordered by virtual runtime, so
+ * each decision takes O(log n) time. A thread that joins the ready queue
+ * after blocking is placed no earlier than the virtual runtime of the last
+ * thread dispatched, so that a thread that has slept for a long time cannot
+ * monopolize the processor when it wakes. Other queues leave a thread's
+ * virtual runtime alone, since theirs only reflects the threads that
+ * happened to pass through them.
+ *
+ * <p>
+ * Rather than running for a fixed quantum, the running thread is preempted
+ * once its virtual runtime exceeds that of the first ready thread by more
+ * than one timer interrupt's worth.
+ *
+ * <p>
+ * This scheduler does not transfer priority.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored; this scheduler does not
+     *					transfer priority.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).priority = priority;
+    }
+
+    /**
+     * Return a quantum too long to expire, since the running thread is
+     * preempted by <tt>shouldPreempt()</tt> instead.
+     */
+    public int getQuantum(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Preempt the running thread if its virtual runtime is more than one
+     * timer interrupt's worth past that of the first ready thread.
+     *
+     * @param	thread	the running thread.
+     * @return	<tt>true</tt> if the running thread should yield now.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	chargeCurrentThread();
+
+	FairQueue readyQueue = (FairQueue) KThread.getReadyQueue();
+	if (readyQueue.tree.isEmpty())
+	    return false;
+
+	return getThreadState(thread).vruntime >
+	    readyQueue.tree.first().vruntime + granularity;
+    }
+
+    public ThreadQueue getWaitQueue(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).waitQueue;
+    }
+
+    /**
+     * Add the ticks the current thread has run since it was dispatched or
+     * last charged to its virtual runtime, scaled by its weight.
+     */
+    private void chargeCurrentThread() {
+	KThread thread = KThread.currentThread();
+	if (thread == null)
+	    return;
+
+	ThreadState state = getThreadState(thread);
+
+	// the virtual runtime is the key of a waiting thread, and no time
+	// passes between a thread joining the ready queue and giving up the
+	// processor
+	if (state.waitQueue != null)
+	    return;
+
+	long now = Machine.timer().getTime();
+	long start = Math.max(thread.getDispatchTime(), state.chargedTime);
+
+	state.vruntime += (now - start) * weights[priorityDefault] /
+	    weights[state.priority];
+	state.chargedTime = now;
+    }
+
+    /**
+     * Test that threads that never block share the processor in proportion
+     * to their weights.
+     */
+    public static void selfTest() {
+	final boolean[] done = new boolean[1];
+	int[] priorities = { 1, 3, 5 };
+	KThread[] threads = new KThread[priorities.length];
+	long totalWeight = 0;
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!done[0]) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+		    }
+		}).setName("fair " + priorities[i]);
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(threads[i], priorities[i]);
+	    Machine.interrupt().restore(intStatus);
+
+	    totalWeight += weights[priorities[i]];
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+
+	ThreadedKernel.alarm.waitUntil(100 * Stats.TimerTicks);
+
+	boolean intStatus = Machine.interrupt().disable();
+	long[] ran = new long[threads.length];
+	long totalRan = 0;
+	for (int i=0; i<threads.length; i++) {
+	    ran[i] = threads[i].getRunTicks();
+	    totalRan += ran[i];
+	}
+	done[0] = true;
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++) {
+	    double expected = (double) totalRan * weights[priorities[i]] /
+		totalWeight;
+
+	    System.out.println(threads[i].getName() + ": ran " + ran[i]
+			       + " ticks, " + Math.round(expected)
+			       + " expected");
+	    Lib.assertTrue(Math.abs(ran[i] - expected) < 0.1 * expected);
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The default priority for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum priority that a thread can have.
+     */
+    public static final int priorityMaximum = 7;
+
+    /**
+     * The weight of each priority. Each priority gets about 25% more
+     * processor time than the one below it.
+     */
+    private static final int[] weights =
+	{ 820, 1024, 1277, 1586, 1991, 2501, 3121, 3906 };
+
+    /**
+     * How far, in virtual ticks, the running thread may get ahead of the
+     * first ready thread before it is preempted.
+     */
+    private static final long granularity = Stats.TimerTicks;
+
+    /**
+     * Orders waiting threads by virtual runtime, and threads with the same
+     * virtual runtime by the time they started waiting.
+     */
+    private static final Comparator<ThreadState> byVruntime =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		if (a.vruntime != b.vruntime)
+		    return a.vruntime < b.vruntime ? -1 : 1;
+		return a.addTime < b.addTime ? -1 :
+		    a.addTime > b.addTime ? 1 : 0;
+	    }
+	};
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread with the least virtual
+     * runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitQueue == null);
+
+	    if (this == KThread.getReadyQueue() &&
+		state.vruntime < minVruntime)
+		state.vruntime = minVruntime;
+	    state.addTime = counter++;
+	    state.waitQueue = this;
+	    tree.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+
+	    if (tree.isEmpty())
+		return null;
+
+	    ThreadState state = tree.pollFirst();
+	    state.waitQueue = null;
+	    if (this == KThread.getReadyQueue())
+		minVruntime = Math.max(minVruntime, state.vruntime);
+
+	    return state.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    Lib.assertTrue(tree.remove(state));
+	    state.waitQueue = null;
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator i=tree.iterator(); i.hasNext(); ) {
+		ThreadState state = (ThreadState) i.next();
+		System.out.print(state.thread + " (vruntime " + state.vruntime
+				 + ") ");
+	    }
+	}
+
+	/** The waiting threads, ordered by virtual runtime. */
+	private TreeSet<ThreadState> tree = new TreeSet<ThreadState>(byVruntime);
+
+	/**
+	 * For the ready queue, the virtual runtime of the last thread
+	 * dequeued, which never decreases.
+	 */
+	private long minVruntime = 0;
+
+	private int counter = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority and virtual runtime.
+     */
+    protected class ThreadState {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/** The thread with which this object is associated. */
+	KThread thread;
+	int priority = priorityDefault;
+	/** The ticks run, scaled by <tt>weights[priorityDefault]</tt> over
+	    this thread's weight. */
+	long vruntime = 0;
+	/** The time up to which the thread has been charged. */
+	long chargedTime = 0;
+	int addTime;
+	/** The queue the associated thread is waiting on, if any. */
+	FairQueue waitQueue = null;
+    }
+}
@@ -0,0 +1,150 @@
+package nachos.threads;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+
+import nachos.machine.*;
+
+/**
+ * The pending result of a task submitted to a <tt>ThreadPool</tt>. A thread
+ * can block in <tt>get()</tt> until the task completes, or register a
+ * callback to be run when it does.
+ *
+ * @see	nachos.threads.ThreadPool
+ */
+public class Future {
+    /**
+     * Allocate a new future for the specified task.
+     *
+     * @param	task	the task whose result this future will hold.
+     */
+    Future(Callable task) {
+	this.task = task;
+	lock = new Lock();
+	completed = new Condition(lock);
+    }
+
+    /**
+     * Run the task, record its result, wake any threads waiting in
+     * <tt>get()</tt>, and run the completion callbacks. Called by a worker
+     * thread of the pool.
+     */
+    void run() {
+	Object result = null;
+	Exception exception = null;
+
+	try {
+	    result = task.call();
+	}
+	catch (Exception e) {
+	    exception = e;
+	}
+
+	complete(result, exception);
+    }
+
+    /**
+     * Complete this future without running its task, because the pool
+     * rejected it.
+     *
+     * @param	exception	the reason the task was rejected.
+     */
+    void reject(Exception exception) {
+	complete(null, exception);
+    }
+
+    /**
+     * Record the result of the task, wake any threads waiting in
+     * <tt>get()</tt>, and run the completion callbacks.
+     */
+    private void complete(Object result, Exception exception) {
+	LinkedList<Runnable> toRun;
+
+	lock.acquire();
+	this.result = result;
+	this.exception = exception;
+	done = true;
+	completed.wakeAll();
+	toRun = callbacks;
+	callbacks = null;
+	lock.release();
+
+	for (Iterator i=toRun.iterator(); i.hasNext(); )
+	    ((Runnable) i.next()).run();
+    }
+
+    /**
+     * Return <tt>true</tt> if the task has completed.
+     *
+     * @return	<tt>true</tt> if the task has completed.
+     */
+    public boolean isDone() {
+	lock.acquire();
+	boolean result = done;
+	lock.release();
+
+	return result;
+    }
+
+    /**
+     * Wait for the task to complete, and return its result.
+     *
+     * @return	the value returned by the task, or <tt>null</tt> if the task
+     *		threw an exception.
+     */
+    public Object get() {
+	lock.acquire();
+	while (!done)
+	    completed.sleep();
+	Object result = this.result;
+	lock.release();
+
+	return result;
+    }
+
+    /**
+     * Wait for the task to complete, and return the exception it threw.
+     *
+     * @return	the exception thrown by the task, or <tt>null</tt> if it
+     *		completed normally.
+     */
+    public Exception getException() {
+	lock.acquire();
+	while (!done)
+	    completed.sleep();
+	Exception exception = this.exception;
+	lock.release();
+
+	return exception;
+    }
+
+    /**
+     * Arrange for the specified callback to be run when the task completes.
+     * The callback is run by the worker thread that completed the task, or
+     * immediately by the current thread if the task has already completed.
+     *
+     * @param	callback	the callback to run.
+     */
+    public void onCompletion(Runnable callback) {
+	Lib.assertTrue(callback != null);
+
+	lock.acquire();
+	if (!done) {
+	    callbacks.add(callback);
+	    lock.release();
+	    return;
+	}
+	lock.release();
+
+	callback.run();
+    }
+
+    private Callable task;
+    private Lock lock;
+    private Condition completed;
+    private boolean done = false;
+    private Object result = null;
+    private Exception exception = null;
+    private LinkedList<Runnable> callbacks = new LinkedList<Runnable>();
+}
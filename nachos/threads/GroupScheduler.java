@@ -0,0 +1,359 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A fair-share scheduler that divides the processor equally among groups of
+ * threads first, and then equally among the threads of each group, so that a
+ * group that creates many threads gets no more of the processor than a group
+ * with one. A user process puts its threads in the group of its job: the
+ * process started by the kernel and each process it starts head a job of
+ * their own, and every other process shares the job of its parent. Threads
+ * that are put in no group share one kernel group.
+ *
+ * <p>
+ * Each group and each thread accumulates the ticks its threads have run. The
+ * next thread to be dequeued is the thread that has run least in the group
+ * that has run least, among the groups with a waiting thread. So that a group
+ * or thread that has been blocked for a long time cannot monopolize the
+ * processor when it wakes, it joins the ready queue no earlier than the last
+ * group or thread dequeued from it.
+ *
+ * <p>
+ * Each queue keeps a balanced tree of waiting threads per group, and scans its
+ * groups, of which there are few, so each decision takes O(g + log n) time.
+ *
+ * <p>
+ * This scheduler does not use priorities, and does not transfer them.
+ */
+public class GroupScheduler extends Scheduler {
+    /**
+     * Allocate a new group scheduler.
+     */
+    public GroupScheduler() {
+    }
+
+    /**
+     * Allocate a new group thread queue.
+     *
+     * @param	transferPriority	ignored; this scheduler does not
+     *					transfer priority.
+     * @return	a new group thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new GroupQueue();
+    }
+
+    public ThreadQueue getWaitQueue(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).waitQueue;
+    }
+
+    /**
+     * Allocate a new, empty group.
+     *
+     * @return	a new group.
+     */
+    public Group newGroup() {
+	return new Group();
+    }
+
+    /**
+     * Put the specified thread in the specified group. The thread must not be
+     * waiting on a queue. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     * @param	group	the group.
+     */
+    public void setGroup(KThread thread, Group group) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	Lib.assertTrue(state.waitQueue == null);
+
+	state.group = group;
+    }
+
+    /**
+     * Add the ticks the current thread has run since it was dispatched or
+     * last charged to the thread and to its group.
+     */
+    private void chargeCurrentThread() {
+	KThread thread = KThread.currentThread();
+	if (thread == null)
+	    return;
+
+	ThreadState state = getThreadState(thread);
+	if (state.waitQueue != null)
+	    return;
+
+	long now = Machine.timer().getTime();
+	long ran = now - Math.max(thread.getDispatchTime(), state.chargedTime);
+
+	state.runtime += ran;
+	state.group.runtime += ran;
+	state.chargedTime = now;
+    }
+
+    /**
+     * Test that a group with one thread that never blocks gets as much of
+     * the processor as a group with three.
+     */
+    public static void selfTest() {
+	GroupScheduler scheduler = (GroupScheduler) ThreadedKernel.scheduler;
+	final boolean[] done = new boolean[1];
+	Group[] groups = { scheduler.newGroup(), scheduler.newGroup() };
+	KThread[] threads = new KThread[4];
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (!done[0]) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+		    }
+		}).setName("group " + (i == 0 ? 0 : 1) + " thread " + i);
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    scheduler.setGroup(threads[i], groups[i == 0 ? 0 : 1]);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+
+	ThreadedKernel.alarm.waitUntil(100 * Stats.TimerTicks);
+
+	boolean intStatus = Machine.interrupt().disable();
+	long single = threads[0].getRunTicks();
+	long shared = 0;
+	for (int i=1; i<threads.length; i++)
+	    shared += threads[i].getRunTicks();
+	done[0] = true;
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("group: 1 thread ran " + single + " ticks, "
+			   + (threads.length - 1) + " threads ran " + shared
+			   + " ticks");
+	Lib.assertTrue(Math.abs(single - shared) < 0.1 * (single + shared));
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private int numGroups = 0;
+
+    /** The group of threads that are put in no other group. */
+    private Group kernelGroup = new Group();
+
+    /**
+     * Orders the waiting threads of a group by the ticks they have run, and
+     * threads that have run equally by the time they started waiting.
+     */
+    private static final Comparator<ThreadState> byRuntime =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		if (a.runtime != b.runtime)
+		    return a.runtime < b.runtime ? -1 : 1;
+		return a.addTime < b.addTime ? -1 :
+		    a.addTime > b.addTime ? 1 : 0;
+	    }
+	};
+
+    /**
+     * A group of threads that share one part of the processor.
+     */
+    public class Group {
+	Group() {
+	    id = numGroups++;
+	}
+
+	/**
+	 * Return the number of ticks the threads of this group have run.
+	 *
+	 * @return	the ticks this group has run.
+	 */
+	public long getRuntime() {
+	    return runtime;
+	}
+
+	private int id;
+	private long runtime = 0;
+	/**
+	 * The runtime of the last thread of this group dequeued from the
+	 * ready queue, which never decreases.
+	 */
+	private long minRuntime = 0;
+    }
+
+    /**
+     * The threads of one group waiting on one queue.
+     */
+    private class Waiting {
+	Waiting(Group group) {
+	    this.group = group;
+	}
+
+	Group group;
+	TreeSet<ThreadState> threads = new TreeSet<ThreadState>(byRuntime);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread that has run least from
+     * the group that has run least.
+     */
+    protected class GroupQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitQueue == null);
+
+	    Waiting waiting = getWaiting(state.group);
+	    if (waiting == null) {
+		waiting = new Waiting(state.group);
+		groups.add(waiting);
+
+		if (this == KThread.getReadyQueue() &&
+		    state.group.runtime < minGroupRuntime)
+		    state.group.runtime = minGroupRuntime;
+	    }
+
+	    if (this == KThread.getReadyQueue() &&
+		state.runtime < state.group.minRuntime)
+		state.runtime = state.group.minRuntime;
+
+	    state.addTime = counter++;
+	    state.waitQueue = this;
+	    waiting.threads.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+
+	    Waiting first = null;
+	    for (int i=0; i<groups.size(); i++) {
+		Waiting waiting = groups.get(i);
+		if (first == null ||
+		    waiting.group.runtime < first.group.runtime ||
+		    (waiting.group.runtime == first.group.runtime &&
+		     waiting.group.id < first.group.id))
+		    first = waiting;
+	    }
+
+	    if (first == null)
+		return null;
+
+	    ThreadState state = first.threads.pollFirst();
+	    if (first.threads.isEmpty())
+		groups.remove(first);
+	    state.waitQueue = null;
+
+	    if (this == KThread.getReadyQueue()) {
+		minGroupRuntime = Math.max(minGroupRuntime, state.group.runtime);
+		state.group.minRuntime =
+		    Math.max(state.group.minRuntime, state.runtime);
+	    }
+
+	    return state.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    Waiting waiting = getWaiting(state.group);
+	    Lib.assertTrue(waiting.threads.remove(state));
+	    if (waiting.threads.isEmpty())
+		groups.remove(waiting);
+	    state.waitQueue = null;
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<groups.size(); i++) {
+		Waiting waiting = groups.get(i);
+		for (Iterator j=waiting.threads.iterator(); j.hasNext(); ) {
+		    ThreadState state = (ThreadState) j.next();
+		    System.out.print(state.thread + " (group " + waiting.group.id
+				     + ", runtime " + state.runtime + ") ");
+		}
+	    }
+	}
+
+	/**
+	 * Return the waiting threads of the specified group, or <tt>null</tt>
+	 * if none of them are waiting on this queue.
+	 */
+	private Waiting getWaiting(Group group) {
+	    for (int i=0; i<groups.size(); i++) {
+		if (groups.get(i).group == group)
+		    return groups.get(i);
+	    }
+	    return null;
+	}
+
+	/** The groups with threads waiting on this queue. */
+	private ArrayList<Waiting> groups = new ArrayList<Waiting>();
+
+	/**
+	 * The runtime of the group of the last thread dequeued, which never
+	 * decreases. Used only for the ready queue.
+	 */
+	private long minGroupRuntime = 0;
+
+	private int counter = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its group and the ticks it has run.
+     */
+    protected class ThreadState {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/** The thread with which this object is associated. */
+	KThread thread;
+	Group group = kernelGroup;
+	long runtime = 0;
+	/** The time up to which the thread has been charged. */
+	long chargedTime = 0;
+	int addTime;
+	/** The queue the associated thread is waiting on, if any. */
+	GroupQueue waitQueue = null;
+    }
+}
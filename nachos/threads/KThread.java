@@ -2,6 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -53,6 +56,7 @@ public class KThread {
 	    currentThread = this;
 	    tcb = TCB.currentTCB();
 	    name = "main";
+	    liveThreads.add(this);
 	    restoreState();
 
 	    createIdleThread();
@@ -114,6 +118,219 @@ public class KThread {
 	return (name + " (#" + id + ")");
     }
 
+    /**
+     * Get the unique identifier of this thread.
+     *
+     * @return	the identifier of this thread.
+     */
+    int getID() {
+	return id;
+    }
+
+    /**
+     * Get the queue of threads that are ready to run, so that a scheduler can
+     * look at it in <tt>shouldPreempt()</tt>.
+     *
+     * @return	the ready queue.
+     */
+    static ThreadQueue getReadyQueue() {
+	return readyQueue;
+    }
+
+    /**
+     * Replace the scheduler. Every thread other than the current thread and
+     * the idle thread must have finished, and no queue created by the old
+     * scheduler may be used again; in particular, the caller must also
+     * replace the alarm. Each thread's cached condition variable semaphore
+     * is dropped, to be allocated again from the new scheduler on its next
+     * sleep. Must be called with interrupts disabled.
+     *
+     * @param	scheduler	the new scheduler.
+     */
+    static void changeScheduler(Scheduler scheduler) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(readyQueue.nextThread() == null);
+
+	ThreadedKernel.scheduler = scheduler;
+
+	for (Iterator i=liveThreads.iterator(); i.hasNext(); ) {
+	    KThread thread = (KThread) i.next();
+	    thread.schedulingState = null;
+	    thread.waiter = null;
+	    thread.joinThreadQueue = scheduler.newThreadQueue(true);
+	    thread.joinThreadQueue.acquire(thread);
+	}
+
+	readyQueue = scheduler.newThreadQueue(false);
+	readyQueue.acquire(currentThread);
+	if (trace != null)
+	    trace.record(SchedulerTrace.eventAcquire, currentThread,
+			 currentThread);
+    }
+
+    /**
+     * Get the time at which this thread was last dispatched, which is when
+     * its current time slice began.
+     *
+     * @return	the value of <tt>Machine.timer().getTime()</tt> when this
+     *		thread last started running.
+     */
+    public long getDispatchTime() {
+	return dispatchTime;
+    }
+
+    /**
+     * Get the total time this thread has spent running, including the
+     * current time slice if it is running now.
+     *
+     * @return	the number of ticks this thread has run.
+     */
+    public long getRunTicks() {
+	if (status == statusRunning)
+	    return runTicks + (Machine.timer().getTime() - dispatchTime);
+	return runTicks;
+    }
+
+    /**
+     * Get the number of times this thread has been dispatched.
+     *
+     * @return	the number of times this thread has started running.
+     */
+    public int getNumDispatches() {
+	return numDispatches;
+    }
+
+    /**
+     * Get the total time this thread has spent on the ready queue before
+     * being dispatched.
+     *
+     * @return	the number of ticks this thread has waited to run.
+     */
+    public long getReadyWaitTicks() {
+	return readyWaitTicks;
+    }
+
+    /**
+     * Get the longest time this thread has spent on the ready queue before
+     * being dispatched.
+     *
+     * @return	the longest wait to run, in ticks.
+     */
+    public long getMaxReadyWaitTicks() {
+	return maxReadyWaitTicks;
+    }
+
+    /**
+     * Get the total time this thread has spent blocked, including the
+     * current wait if it is blocked now.
+     *
+     * @return	the number of ticks this thread has been blocked.
+     */
+    public long getBlockedTicks() {
+	if (status == statusBlocked)
+	    return blockedTicks + (Machine.timer().getTime() - blockTime);
+	return blockedTicks;
+    }
+
+    /**
+     * Print the CPU, ready queue, and blocked time of every thread that has
+     * not been destroyed, and the totals for all threads that have.
+     */
+    public static void printAccounting() {
+	System.out.println("Thread accounting:");
+
+	for (Iterator i=liveThreads.iterator(); i.hasNext(); ) {
+	    KThread thread = (KThread) i.next();
+
+	    System.out.println("  " + thread + ": run "
+			       + thread.getRunTicks() + " ticks in "
+			       + thread.numDispatches + " dispatches, "
+			       + "ready wait " + thread.readyWaitTicks
+			       + " (max " + thread.maxReadyWaitTicks + "), "
+			       + "blocked " + thread.getBlockedTicks());
+	}
+
+	System.out.println("  " + numDestroyed + " destroyed: run "
+			   + destroyedRunTicks + " ticks in "
+			   + destroyedDispatches + " dispatches, "
+			   + "ready wait " + destroyedReadyWaitTicks
+			   + " (max " + destroyedMaxReadyWaitTicks + "), "
+			   + "blocked " + destroyedBlockedTicks);
+    }
+
+    /**
+     * Print the state of every thread that has not been destroyed: its
+     * status, priority, and the queue it is waiting on and the thread that
+     * has access to it, if the scheduler keeps track of these. Then print the
+     * wait-for graph formed by these threads, marking any thread that is part
+     * of a cycle as deadlocked.
+     */
+    public static void dumpThreads() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Scheduler scheduler = ThreadedKernel.scheduler;
+
+	System.out.println("Thread dump at tick " + Machine.timer().getTime()
+			   + ":");
+
+	for (Iterator i=liveThreads.iterator(); i.hasNext(); ) {
+	    KThread thread = (KThread) i.next();
+
+	    String line = "  " + thread + ": " + statusNames[thread.status]
+		+ ", priority " + scheduler.getPriority(thread)
+		+ ", effective " + scheduler.getEffectivePriority(thread)
+		+ ", run " + thread.getRunTicks()
+		+ ", blocked " + thread.getBlockedTicks();
+
+	    ThreadQueue queue = scheduler.getWaitQueue(thread);
+	    if (thread.status == statusBlocked && queue != null) {
+		line += ", waiting on " + queue.getClass().getSimpleName()
+		    + "@" + Integer.toHexString(System.identityHashCode(queue));
+		KThread holder = scheduler.getResourceHolder(queue);
+		if (holder != null)
+		    line += " held by " + holder;
+	    }
+
+	    System.out.println(line);
+	}
+
+	System.out.println("Wait-for graph:");
+
+	for (Iterator i=liveThreads.iterator(); i.hasNext(); ) {
+	    KThread thread = (KThread) i.next();
+	    KThread holder = waitsFor(thread);
+	    if (holder == null)
+		continue;
+
+	    // each thread waits for at most one other, so following the edges
+	    // from a deadlocked thread must lead back to it
+	    KThread next = holder;
+	    for (int n=0; next != null && next != thread &&
+		     n < liveThreads.size(); n++)
+		next = waitsFor(next);
+
+	    System.out.println("  " + thread + " -> " + holder
+			       + (next == thread ? " (deadlock)" : ""));
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the thread that the specified blocked thread is waiting for, as
+     * reported by the scheduler.
+     */
+    private static KThread waitsFor(KThread thread) {
+	if (thread.status != statusBlocked)
+	    return null;
+
+	ThreadQueue queue = ThreadedKernel.scheduler.getWaitQueue(thread);
+	if (queue == null)
+	    return null;
+
+	return ThreadedKernel.scheduler.getResourceHolder(queue);
+    }
+
     /**
      * Deterministically and consistently compare this thread to another
      * thread.
@@ -144,6 +361,8 @@ public class KThread {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	liveThreads.add(this);
+
 	tcb.start(new Runnable() {
 		public void run() {
 		    runThread();
@@ -191,6 +410,9 @@ public class KThread {
 	Lib.assertTrue(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
 
+	KThread joiner = currentThread.joinThreadQueue.nextThread();
+	if (joiner != null)
+	    joiner.ready();
 
 	currentThread.status = statusFinished;
 	
@@ -243,8 +465,10 @@ public class KThread {
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
-	if (currentThread.status != statusFinished)
+	if (currentThread.status != statusFinished) {
 	    currentThread.status = statusBlocked;
+	    currentThread.blockTime = Machine.timer().getTime();
+	}
 
 	runNextThread();
     }
@@ -258,10 +482,18 @@ public class KThread {
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
+
+	long now = Machine.timer().getTime();
+	if (status == statusBlocked)
+	    blockedTicks += now - blockTime;
+	readyTime = now;
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    if (trace != null)
+		trace.record(SchedulerTrace.eventReady, this, currentThread);
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -318,6 +550,14 @@ public class KThread {
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
+	if (trace != null) {
+	    if (nextThread != null)
+		trace.record(SchedulerTrace.eventDispatch, nextThread,
+			     currentThread);
+	    else
+		trace.record(SchedulerTrace.eventIdle, idleThread,
+			     currentThread);
+	}
 	if (nextThread == null)
 	    nextThread = idleThread;
 
@@ -351,6 +591,9 @@ public class KThread {
 
 	currentThread.saveState();
 
+	currentThread.runTicks +=
+	    Machine.timer().getTime() - currentThread.dispatchTime;
+
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
@@ -375,14 +618,38 @@ public class KThread {
 	Machine.autoGrader().runningThread(this);
 	
 	status = statusRunning;
+	dispatchTime = Machine.timer().getTime();
+
+	numDispatches++;
+	long wait = dispatchTime - readyTime;
+	readyWaitTicks += wait;
+	if (wait > maxReadyWaitTicks)
+	    maxReadyWaitTicks = wait;
 
 	if (toBeDestroyed != null) {
 	    toBeDestroyed.tcb.destroy();
 	    toBeDestroyed.tcb = null;
+	    toBeDestroyed.retire();
 	    toBeDestroyed = null;
 	}
     }
 
+    /**
+     * Remove this destroyed thread from the live threads, adding its
+     * accounting to the totals for destroyed threads.
+     */
+    private void retire() {
+	liveThreads.remove(this);
+
+	numDestroyed++;
+	destroyedRunTicks += runTicks;
+	destroyedDispatches += numDispatches;
+	destroyedReadyWaitTicks += readyWaitTicks;
+	destroyedMaxReadyWaitTicks =
+	    Math.max(destroyedMaxReadyWaitTicks, maxReadyWaitTicks);
+	destroyedBlockedTicks += blockedTicks;
+    }
+
     /**
      * Prepare this thread to give up the processor. Kernel threads do not
      * need to do anything here.
@@ -418,7 +685,64 @@ public class KThread {
 	new PingTest(0).run();
     }
 
+    /**
+     * Measure the cost of a context switch. Two threads that do nothing but
+     * yield ping-pong for the specified number of yields each, and the
+     * average time per switch between them is printed. Schedulers that may
+     * pick the yielding thread again make fewer switches than yields, so only
+     * the times a thread resumes after the other one ran are counted.
+     * Nothing else should be ready to run while this is going on.
+     *
+     * @param	switches	the number of yields to time, split between the
+     *				two threads.
+     */
+    public static void benchmark(int switches) {
+	final int rounds = switches/2;
+	final int warmup = rounds/10;
+	final KThread[] lastRun = new KThread[1];
+	final int[] switched = new int[1];
+	final boolean[] timing = new boolean[1];
+
+	KThread partner = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<warmup+rounds; i++)
+			benchmarkYield(lastRun, switched, timing);
+		}
+	    }).setName("benchmark");
+	partner.fork();
+
+	for (int i=0; i<warmup; i++)
+	    benchmarkYield(lastRun, switched, timing);
+
+	timing[0] = true;
+	long start = System.nanoTime();
+	for (int i=0; i<rounds; i++)
+	    benchmarkYield(lastRun, switched, timing);
+	long elapsed = System.nanoTime() - start;
+	timing[0] = false;
+
+	partner.join();
+
+	System.out.println("KThread benchmark: " + rounds + " yields, "
+			   + switched[0] + " switches, "
+			   + elapsed/Math.max(1, switched[0]) + " ns/switch");
+    }
+
+    /**
+     * Yield, then count a switch if the other benchmark thread ran last and
+     * the benchmark is being timed.
+     */
+    private static void benchmarkYield(KThread[] lastRun, int[] switched,
+				       boolean[] timing) {
+	KThread.yield();
+
+	if (timing[0] && lastRun[0] != currentThread)
+	    switched[0]++;
+	lastRun[0] = currentThread;
+    }
+
     private static final char dbgThread = 't';
+    static final char dbgWaitGraph = 'w';
 
     /**
      * Additional state used by schedulers.
@@ -433,6 +757,9 @@ public class KThread {
     private static final int statusBlocked = 3;
     private static final int statusFinished = 4;
 
+    private static final String[] statusNames =
+	{ "new", "ready", "running", "blocked", "finished" };
+
     /**
      * The status of this thread. A thread can either be new (not yet forked),
      * ready (on the ready queue but not running), running, or blocked (not
@@ -442,6 +769,19 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    private long dispatchTime = 0;
+
+    /**
+     * Accounting kept by <tt>ready()</tt>, <tt>sleep()</tt>, <tt>run()</tt>,
+     * and <tt>restoreState()</tt>. All times are in ticks.
+     */
+    private long runTicks = 0;
+    private int numDispatches = 0;
+    private long readyTime = 0;
+    private long readyWaitTicks = 0;
+    private long maxReadyWaitTicks = 0;
+    private long blockTime = 0;
+    private long blockedTicks = 0;
 
     private ThreadQueue joinThreadQueue = ThreadedKernel.scheduler.newThreadQueue(true);
 	{
@@ -449,6 +789,25 @@ public class KThread {
 		joinThreadQueue.acquire(this);
 		Machine.interrupt().restore(intStatus);
 	}
+
+    /**
+     * The link to the next thread sleeping on the same condition variable.
+     * A thread sleeps on at most one condition variable at a time, so the
+     * thread itself serves as the node of the condition's wait list.
+     */
+    KThread nextWaiter = null;
+    /**
+     * The semaphore this thread sleeps on in <tt>Condition.sleep()</tt>,
+     * allocated on first use and reused after that.
+     */
+    Semaphore waiter = null;
+    /** The number of locks with a priority ceiling this thread holds. */
+    int ceilingLocks = 0;
+    /**
+     * This thread's priority before the first of the ceiling locks it holds
+     * raised it.
+     */
+    int unraisedPriority;
  
 
     /**
@@ -459,6 +818,23 @@ public class KThread {
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
 
+    /** Threads that have been forked and not yet destroyed. */
+    private static LinkedHashSet<KThread> liveThreads =
+	new LinkedHashSet<KThread>();
+
+    private static int numDestroyed = 0;
+    private static long destroyedRunTicks = 0;
+    private static long destroyedDispatches = 0;
+    private static long destroyedReadyWaitTicks = 0;
+    private static long destroyedMaxReadyWaitTicks = 0;
+    private static long destroyedBlockedTicks = 0;
+
+    /**
+     * The trace of ready queue decisions, or <tt>null</tt> if tracing is
+     * disabled.
+     */
+    static SchedulerTrace trace = null;
+
     private static ThreadQueue readyQueue = null;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
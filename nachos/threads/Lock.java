@@ -18,12 +18,39 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * A lock can instead be given a <i>priority ceiling</i>, the highest
+ * priority of any thread that will ever acquire it. The holder of such a lock
+ * runs at the ceiling for as long as it holds the lock, so no thread that
+ * could want the lock can preempt it, and no priority is donated through the
+ * lock. This bounds how long a thread can be blocked without any of the cost
+ * of donation, but a thread whose priority is above the ceiling must never
+ * acquire the lock, and ceiling locks must be released in the reverse order
+ * they were acquired. A thread that holds a ceiling lock is judged by its
+ * priority from before it was raised, so it may go on to acquire a lock with
+ * a lower ceiling.
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+    }
+
+    /**
+     * Allocate a new lock with a priority ceiling. The lock will initially be
+     * <i>free</i>.
+     *
+     * @param	ceiling	the highest priority of any thread that will acquire
+     *			this lock.
+     */
+    public Lock(int ceiling) {
+	Lib.assertTrue(ceiling >= 0);
+
+	this.ceiling = ceiling;
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
     }
 
     /**
@@ -36,6 +63,8 @@ public class Lock {
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
 
+	checkCeiling(thread);
+
 	if (lockHolder != null) {
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
@@ -43,6 +72,7 @@ public class Lock {
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+	    raiseToCeiling();
 	}
 
 	Lib.assertTrue(lockHolder == thread);
@@ -50,6 +80,42 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock, giving up after at least <i>timeout</i>
+     * ticks. The current thread must not already hold this lock.
+     *
+     * @param	timeout	the minimum number of clock ticks to wait, or 0 not
+     *			to wait at all.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean tryAcquire(long timeout) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	checkCeiling(thread);
+
+	boolean acquired = true;
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	    raiseToCeiling();
+	}
+	else if (timeout <= 0) {
+	    acquired = false;
+	}
+	else {
+	    acquired = ThreadedKernel.alarm.waitForAccess(waitQueue, timeout);
+	}
+
+	Lib.assertTrue(acquired == (lockHolder == thread));
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,8 +124,12 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	restorePriority();
+
+	if ((lockHolder = waitQueue.nextThread()) != null) {
+	    raiseToCeiling();
 	    lockHolder.ready();
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
@@ -73,7 +143,143 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Assert that the specified thread may acquire this lock, if it has a
+     * ceiling: that its priority from before any ceiling lock raised it is
+     * not above the ceiling, and that no donation or boost has raised its
+     * effective priority above both the ceiling and the locks it holds.
+     */
+    private void checkCeiling(KThread thread) {
+	if (ceiling == noCeiling)
+	    return;
+
+	int priority = ThreadedKernel.scheduler.getPriority(thread);
+	int unraised = (thread.ceilingLocks > 0 ?
+			thread.unraisedPriority : priority);
+
+	Lib.assertTrue(unraised <= ceiling &&
+		       ThreadedKernel.scheduler.getEffectivePriority(thread) <=
+		       Math.max(ceiling, priority),
+		       "priority above lock ceiling");
+    }
+
+    /**
+     * Raise the new holder of this lock to the ceiling, if this lock has one,
+     * remembering the priority to restore on release.
+     */
+    private void raiseToCeiling() {
+	if (ceiling == noCeiling)
+	    return;
+
+	if (lockHolder.ceilingLocks++ == 0)
+	    lockHolder.unraisedPriority =
+		ThreadedKernel.scheduler.getPriority(lockHolder);
+
+	savedPriority = ThreadedKernel.scheduler.getPriority(lockHolder);
+	if (savedPriority < ceiling)
+	    ThreadedKernel.scheduler.setPriority(lockHolder, ceiling);
+	raisedPriority = ThreadedKernel.scheduler.getPriority(lockHolder);
+    }
+
+    /**
+     * Put the priority of the holder back to what it was when it acquired
+     * this lock, if this lock has a ceiling.
+     */
+    private void restorePriority() {
+	if (ceiling == noCeiling)
+	    return;
+
+	lockHolder.ceilingLocks--;
+
+	if (savedPriority == raisedPriority)
+	    return;
+
+	Lib.assertTrue(ThreadedKernel.scheduler.getPriority(lockHolder) ==
+		       raisedPriority,
+		       "priority changed while holding a ceiling lock");
+	ThreadedKernel.scheduler.setPriority(lockHolder, savedPriority);
+    }
+
+    /**
+     * Test that a ceiling lock raises its holder, and restores it on
+     * release, including when the lock is handed to a waiting thread, and
+     * that a raised holder may acquire a lock with a lower ceiling. Then
+     * test that <tt>tryAcquire()</tt> gives up while another thread holds a
+     * lock, and succeeds once it is released.
+     */
+    public static void selfTest() {
+	final Scheduler scheduler = ThreadedKernel.scheduler;
+	final Lock lock = new Lock(PriorityScheduler.priorityMaximum);
+	final int[] held = new int[1];
+
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = scheduler.getPriority();
+	Machine.interrupt().restore(intStatus);
+
+	lock.acquire();
+
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    boolean intStatus = Machine.interrupt().disable();
+		    held[0] = scheduler.getPriority();
+		    Machine.interrupt().restore(intStatus);
+		    lock.release();
+		}
+	    }).setName("ceiling waiter");
+	waiter.fork();
+	KThread.yield();
+
+	lock.release();
+	waiter.join();
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(scheduler.getPriority() == priority);
+	if (scheduler instanceof PriorityScheduler)
+	    Lib.assertTrue(held[0] == PriorityScheduler.priorityMaximum);
+	Machine.interrupt().restore(intStatus);
+
+	final Lock inner = new Lock(PriorityScheduler.priorityMaximum - 2);
+	lock.acquire();
+	inner.acquire();
+	intStatus = Machine.interrupt().disable();
+	if (scheduler instanceof PriorityScheduler)
+	    Lib.assertTrue(scheduler.getPriority() ==
+			   PriorityScheduler.priorityMaximum);
+	Machine.interrupt().restore(intStatus);
+	inner.release();
+	lock.release();
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(scheduler.getPriority() == priority);
+	Machine.interrupt().restore(intStatus);
+
+	final Lock timed = new Lock();
+	KThread holder = new KThread(new Runnable() {
+		public void run() {
+		    timed.acquire();
+		    ThreadedKernel.alarm.waitUntil(4 * Stats.TimerTicks);
+		    timed.release();
+		}
+	    }).setName("timed holder");
+	holder.fork();
+	while (timed.lockHolder == null)
+	    KThread.yield();
+
+	Lib.assertTrue(!timed.tryAcquire(0));
+	Lib.assertTrue(!timed.tryAcquire(Stats.TimerTicks));
+	Lib.assertTrue(timed.tryAcquire(100 * Stats.TimerTicks));
+	timed.release();
+	holder.join();
+    }
+
+    private static final int noCeiling = -1;
+
     private KThread lockHolder = null;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue waitQueue;
+    private int ceiling = noCeiling;
+    /** The holder's priority before it was raised to the ceiling. */
+    private int savedPriority;
+    /** The holder's priority after it was raised to the ceiling. */
+    private int raisedPriority;
 }
@@ -1,6 +1,10 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Random;
 
 /**
@@ -22,6 +26,19 @@ import java.util.Random;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Tickets can be issued in a <i>currency</i>, such as one per user process,
+ * funded with a fixed number of base tickets. On each queue, the threads of a
+ * currency that are waiting there divide its funding in proportion to their
+ * priorities, so a currency gets the same share however many threads it has.
+ * Threads outside any currency hold their priority in base tickets.
+ *
+ * <p>
+ * A thread that gave up the processor after using only a fraction <i>f</i>
+ * of its quantum gets <i>compensation tickets</i>: its tickets on the ready
+ * queue are multiplied by 1/<i>f</i> until it next runs, so that threads that
+ * block often still get their share of the processor.
  */
 public class LotteryScheduler extends Scheduler {
     /**
@@ -30,7 +47,12 @@ public class LotteryScheduler extends Scheduler {
     public LotteryScheduler() {
     }
     
+    /**
+     * Test this scheduler's queues with threads that are never run. Must be
+     * called with interrupts disabled.
+     */
     public void selfTest(){
+    	Lib.assertTrue(Machine.interrupt().disabled());
     	KThread dummy[] = new KThread[12];
     	for (int i = 0; i < 12; i++)
     		dummy[i] = new KThread();
@@ -64,6 +86,47 @@ public class LotteryScheduler extends Scheduler {
     	queue0.selfTest(10000);
     	queue0.nextThread();
     	queue0.selfTest(10000);
+    	
+    	// a currency's funding is divided among its threads on each queue
+    	Currency single = newCurrency(100);
+    	Currency shared = newCurrency(100);
+    	KThread member[] = new KThread[5];
+    	LotteryQueue queue3 = new LotteryQueue(false);
+    	for (int i = 0; i < 5; i++){
+    		member[i] = new KThread().setName("currency member " + i);
+    		setCurrency(member[i], i == 0 ? single : shared);
+    		queue3.waitForAccess(member[i]);
+    	}
+    	Lib.assertTrue(getEffectivePriority(member[0]) == 100);
+    	for (int i = 1; i < 5; i++)
+    		Lib.assertTrue(getEffectivePriority(member[i]) == 25);
+    	setPriority(member[1], 2);
+    	Lib.assertTrue(getEffectivePriority(member[1]) == 40);
+    	Lib.assertTrue(getEffectivePriority(member[2]) == 20);
+    	Lib.assertTrue(queue3.tree.totalTickets == 200);
+    	while (queue3.nextThread() != null)
+    		;
+    	Lib.assertTrue(getEffectivePriority(member[1]) == 100);
+    	System.out.println("Currencies: 1 thread and 4 threads each hold 100 tickets");
+    	
+    	// compensation follows the burst the thread ran just before it
+    	// yielded, whether that was short or long
+    	KThread current = KThread.currentThread();
+    	ThreadState state = getThreadState(current);
+    	int[] bursts = { state.quantum / 10, state.quantum / 2,
+    			state.quantum / 10, state.quantum / 2 };
+    	KThread.yield();
+    	for (int i = 0; i < bursts.length; i++){
+    		long start = current.getRunTicks();
+    		while (current.getRunTicks() - start < bursts[i]){
+    			Machine.interrupt().enable();
+    			Machine.interrupt().disable();
+    		}
+    		long ran = current.getRunTicks() - state.runTicksAtReady;
+    		long readyBefore = state.runTicksAtReady;
+    		KThread.yield();
+    		Lib.assertTrue(state.runTicksAtReady - readyBefore == ran);
+    	}
     }
     
     protected ThreadState getThreadState(KThread thread) {
@@ -84,6 +147,57 @@ public class LotteryScheduler extends Scheduler {
     	getThreadState(thread).setPriority(priority);
     }
     
+    public int getQuantum(KThread thread) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	return getThreadState(thread).quantum;
+    }
+    
+    public void setQuantum(KThread thread, int quantum) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	Lib.assertTrue(quantum > 0);
+    	getThreadState(thread).quantum = quantum;
+    }
+
+    public ThreadQueue getWaitQueue(KThread thread) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	return getThreadState(thread).waitQueue;
+    }
+
+    /**
+     * Allocate a new currency.
+     *
+     * @param	funding	the number of base tickets the currency is worth.
+     * @return	a new currency.
+     */
+    public Currency newCurrency(int funding) {
+    	return new Currency(funding);
+    }
+
+    /**
+     * Issue the tickets of the specified thread in the specified currency.
+     * The thread must not be waiting on a queue. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread		the thread.
+     * @param	currency	the currency, or <tt>null</tt> to hold base
+     *				tickets.
+     */
+    public void setCurrency(KThread thread, Currency currency) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	ThreadState state = getThreadState(thread);
+    	Lib.assertTrue(state.waitQueue == null);
+    	state.currency = currency;
+    	state.setOwn((int) state.getValue(null));
+    }
+
+    public KThread getResourceHolder(ThreadQueue queue) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	LotteryQueue q = (LotteryQueue) queue;
+    	if (!q.transferPriority || q.threadHoldingResource == null)
+    		return null;
+    	return q.threadHoldingResource.thread;
+    }
+    
     /**
      * Allocate a new lottery thread queue.
      *
@@ -96,12 +210,18 @@ public class LotteryScheduler extends Scheduler {
 		return new LotteryQueue(transferPriority);
     }
     
+    /**
+     * The ticket holders waiting on a queue, with a Fenwick tree over their
+     * tickets. Holders are numbered from 1; <tt>sum[i]</tt> is the total of
+     * the tickets of holders <tt>i - (i &amp; -i) + 1</tt> through
+     * <tt>i</tt>. Drawing descends the tree from the top, so it takes
+     * O(log n) time and allocates nothing.
+     */
     protected class BinaryIndexedTree{
     	public BinaryIndexedTree(){
-    		array = new ArrayList<ThreadState>();
-    		array.add(null);
-    		sum = new ArrayList<Integer>();
-    		sum.add(0);
+    		array = new ThreadState[initialCapacity + 1];
+    		sum = new int[initialCapacity + 1];
+    		size = 0;
     		totalTickets = 0;
     		rand = new Random();
     	}
@@ -109,110 +229,189 @@ public class LotteryScheduler extends Scheduler {
     	public int prefixSum(int index){
     		int ret = 0;
     		while (index > 0){
-    			ret += sum.get(index);
+    			ret += sum[index];
     			index &= index - 1;
     		}
     		return ret;
     	}
     	
     	public void modify(int index, int x){
-    		while (index < sum.size()){
-    			sum.set(index, sum.get(index) + x);
+    		while (index <= size){
+    			sum[index] += x;
     			index += index & -index;
     		}
     		totalTickets += x;
     	}
     	
     	public void add(ThreadState state){
-    		//
-    		//System.out.print(totalTickets + " " + state.tickets);
-    		int t = array.size();
-    		array.add(state);
+    		if (size + 1 == array.length){
+    			array = Arrays.copyOf(array, array.length * 2);
+    			sum = Arrays.copyOf(sum, sum.length * 2);
+    		}
+    		int t = ++size;
+    		array[t] = state;
     		state.treeIndex = t;
     		totalTickets += state.tickets;
-    		//
-    		//System.out.println(" " + totalTickets);
-    		sum.add(totalTickets - prefixSum(t & (t - 1)));
-    		//
-    		//System.out.println("Thread " + state.thread.toString() + " added to queue " + this.toString());
+    		sum[t] = totalTickets - prefixSum(t & (t - 1));
     	}
     	
+    	/**
+    	 * Remove the holder at <i>index</i>, moving the last holder into its
+    	 * place.
+    	 */
     	public ThreadState remove(int index){
-    		ThreadState ret = array.get(index);
-    		//
-    		//System.out.print(totalTickets + " " + array.get(index).tickets);
-    		modify(index, array.get(array.size() - 1).tickets - array.get(index).tickets);
-    		array.set(index, array.get(array.size() - 1));
-    		array.get(index).treeIndex = index;
-    		totalTickets -= array.get(array.size() - 1).tickets;
-    		array.remove(array.size() - 1);
-    		sum.remove(sum.size() - 1);
-    		//
-    		//System.out.println(" " + totalTickets);
-    		//
-    		//System.out.println("Thread " + ret.thread.toString() + " removed from queue " + this.toString());
+    		ThreadState ret = array[index];
+    		ThreadState last = array[size];
+    		modify(index, last.tickets - ret.tickets);
+    		array[index] = last;
+    		last.treeIndex = index;
+    		totalTickets -= last.tickets;
+    		array[size] = null;
+    		size--;
     		return ret;
     	}
     	
-    	public int binarySearch(int key){
-    		int zl = 0;
-    		int zr = sum.size() - 1;
-    		while (zr - zl > 1){
-    			int mid = (zl + zr) / 2;
-    			if (prefixSum(mid) > key)
-    				zr = mid;
-    			else
-    				zl = mid;
+    	/**
+    	 * Return the index of the holder of ticket number <i>key</i>, that
+    	 * is, the smallest index whose prefix sum exceeds <i>key</i>.
+    	 */
+    	public int find(int key){
+    		int pos = 0;
+    		for (int step = Integer.highestOneBit(size); step > 0; step >>= 1){
+    			if (pos + step <= size && sum[pos + step] <= key){
+    				pos += step;
+    				key -= sum[pos];
+    			}
     		}
-    		return zr;
+    		return pos + 1;
     	}
     	
     	public ThreadState draw(){
-    		if (array.size() == 1)
+    		if (size == 0)
     			return null;
     		else
-    			return remove(binarySearch(rand.nextInt(totalTickets)));
+    			return remove(find(rand.nextInt(totalTickets)));
     	}
     	
     	public int peek(){
-    		if (array.size() == 1)
+    		if (size == 0)
     			return -1;
     		else
-    			return binarySearch(rand.nextInt(totalTickets));
+    			return find(rand.nextInt(totalTickets));
     	}
     	
-    	ArrayList<ThreadState> array = null;
-    	ArrayList<Integer> sum = null;
+    	ThreadState[] array = null;
+    	int[] sum = null;
+    	int size;
     	int totalTickets;
     	Random rand = null;
     }
     
+    /**
+     * A currency in which tickets can be issued, worth a fixed number of base
+     * tickets.
+     */
+    public static class Currency{
+    	Currency(int funding){
+    		Lib.assertTrue(funding > 0);
+    		this.funding = funding;
+    	}
+    	
+    	/**
+    	 * Return the number of base tickets this currency is worth.
+    	 */
+    	public int getFunding(){
+    		return funding;
+    	}
+    	
+    	private int funding;
+    }
+    
+    /**
+     * The threads of one currency waiting on one queue, and the total of
+     * their priorities, among which the currency's funding is divided.
+     */
+    private class Share{
+    	ArrayList<ThreadState> members = new ArrayList<ThreadState>();
+    	int issued = 0;
+    }
+    
     protected class ThreadState{
     	public ThreadState(KThread thread){
     		this.thread = thread;
     		priority = priorityDefault;
-    		tickets = priority;
+    		own = priority;
+    		tickets = own;
     	}
     	
+    	/**
+    	 * Add tickets to the associated thread, and to each holder up the
+    	 * chain of queues that transfer tickets, in one pass that stops as
+    	 * soon as the chain ends.
+    	 */
     	public void gainTickets(int tickets){
-    		//
-    		//System.out.println(thread.toString() + ": " + tickets + " tickets gained " + this.tickets + " -> " + (this.tickets + tickets));
+    		ThreadState state = this;
+    		while (state != null && tickets != 0){
+    			LotteryQueue queue = state.waitQueue;
+    			state.gainLocalTickets(tickets);
+    			if (queue == null || !queue.transferPriority)
+    				break;
+    			state = queue.threadHoldingResource;
+    		}
+    	}
+    	
+    	/**
+    	 * Add tickets to the associated thread and to the tree of the queue
+    	 * it waits on, without passing them on to the queue's holder. The
+    	 * caller must pass them on.
+    	 */
+    	void gainLocalTickets(int tickets){
     		this.tickets += tickets;
-    		if (waitQueue != null){
+    		if (waitQueue != null)
     			waitQueue.tree.modify(treeIndex, tickets);
-    			if (waitQueue.transferPriority)
-    				if (waitQueue.threadHoldingResource != null)
-    					waitQueue.threadHoldingResource.gainTickets(tickets);
+    	}
+    	
+    	/**
+    	 * Set the number of base tickets the associated thread holds of its
+    	 * own, as opposed to tickets transferred to it.
+    	 */
+    	public void setOwn(int own){
+    		gainTickets(own - this.own);
+    		this.own = own;
+    	}
+    	
+    	/**
+    	 * Return the number of base tickets the associated thread should hold
+    	 * of its own while waiting on <i>queue</i>, or while not waiting if
+    	 * <i>queue</i> is <tt>null</tt>: its priority, or its share of its
+    	 * currency's funding, times any compensation.
+    	 */
+    	long getValue(LotteryQueue queue){
+    		long value = priority;
+    		if (currency != null){
+    			int issued = priority;
+    			if (queue != null)
+    				issued = queue.shares.get(currency).issued;
+    			value = Math.max(1, (long) currency.funding * priority / issued);
     		}
+    		if (queue != null && queue == KThread.getReadyQueue() &&
+    				lastRan > 0 && lastRan < quantum)
+    			value = value * quantum / lastRan;
+    		return Math.min(value, maxOwnTickets);
     	}
     	
     	public void setPriority(int priority){
     		if ((priority > priorityMaximum) || (priority < priorityMinimum) || (priority == this.priority))
     			return;
-    		//
-    		//System.out.println(thread.toString() + ": priority changed " + this.priority + " -> " + priority);
-    		gainTickets(priority - this.priority);
-    		this.priority = priority;
+    		if (waitQueue != null && currency != null){
+    			waitQueue.shares.get(currency).issued += priority - this.priority;
+    			this.priority = priority;
+    			waitQueue.revalue(currency);
+    		}
+    		else{
+    			this.priority = priority;
+    			setOwn((int) getValue(waitQueue));
+    		}
     	}
     	
     	public boolean increasePriority(){
@@ -232,8 +431,18 @@ public class LotteryScheduler extends Scheduler {
     	LotteryQueue waitQueue = null;
     	KThread thread = null;
     	int priority;
+    	/** The base tickets held of the thread's own. */
+    	int own;
+    	/** Own tickets plus tickets transferred to the thread. */
     	int tickets;
     	int treeIndex;
+    	int quantum = defaultQuantum;
+    	/** The currency the thread's tickets are issued in, if any. */
+    	Currency currency = null;
+    	/** The thread's run time when it last joined the ready queue. */
+    	long runTicksAtReady = 0;
+    	/** How long the thread ran before last joining the ready queue. */
+    	long lastRan = 0;
     }
     
     protected class LotteryQueue extends ThreadQueue{
@@ -244,12 +453,25 @@ public class LotteryScheduler extends Scheduler {
     	
         public void waitForAccess(KThread thread){
         	ThreadState state = getThreadState(thread);
+        	if (this == KThread.getReadyQueue()){
+        		// ready() has already taken the current thread off the
+        		// processor, but its slice is only added to its run time
+        		// when the next thread is dispatched
+        		long runTicks = thread.getRunTicks();
+        		if (thread == KThread.currentThread())
+        			runTicks += Machine.timer().getTime() - thread.getDispatchTime();
+        		state.lastRan = runTicks - state.runTicksAtReady;
+        		state.runTicksAtReady = runTicks;
+        	}
+        	if (state.currency != null)
+        		addMember(state);
+        	state.setOwn((int) state.getValue(this));
         	tree.add(state);
         	state.waitQueue = this;
-        	if (transferPriority)
-        		if (threadHoldingResource != null){
-        			threadHoldingResource.gainTickets(state.tickets);
-        		}
+        	int gained = state.tickets;
+        	if (state.currency != null)
+        		gained += revalueLocal(state.currency);
+        	donate(gained);
         }
         
         public KThread nextThread(){
@@ -263,11 +485,93 @@ public class LotteryScheduler extends Scheduler {
         		return null;
         	else{
         		state.waitQueue = null;
+        		if (state.currency != null){
+        			removeMember(state);
+        			revalue(state.currency);
+        		}
+        		state.lastRan = 0;
+        		state.setOwn((int) state.getValue(null));
         		return state.thread;
         	}
         }
+        
+        public boolean remove(KThread thread){
+        	ThreadState state = getThreadState(thread);
+        	if (state.waitQueue != this)
+        		return false;
+        	tree.remove(state.treeIndex);
+        	state.waitQueue = null;
+        	int lost = state.tickets;
+        	if (state.currency != null){
+        		removeMember(state);
+        		lost -= revalueLocal(state.currency);
+        	}
+        	donate(-lost);
+        	state.lastRan = 0;
+        	state.setOwn((int) state.getValue(null));
+        	return true;
+        }
+        
+        /**
+         * Recompute the own tickets of every thread of <i>currency</i>
+         * waiting on this queue, after the threads sharing its funding here
+         * have changed, and pass the net change on to the holder once.
+         */
+        void revalue(Currency currency){
+        	donate(revalueLocal(currency));
+        }
+        
+        /**
+         * Recompute the own tickets of every thread of <i>currency</i>
+         * waiting on this queue, without passing the change on.
+         *
+         * @return	the net change in the tickets on this queue.
+         */
+        private int revalueLocal(Currency currency){
+        	Share share = shares.get(currency);
+        	if (share == null)
+        		return 0;
+        	int gained = 0;
+        	for (int i = 0; i < share.members.size(); i++){
+        		ThreadState state = share.members.get(i);
+        		int own = (int) state.getValue(this);
+        		state.gainLocalTickets(own - state.own);
+        		gained += own - state.own;
+        		state.own = own;
+        	}
+        	return gained;
+        }
+        
+        /**
+         * Pass tickets gained by this queue on to its holder, if this queue
+         * transfers tickets.
+         */
+        private void donate(int tickets){
+        	if (transferPriority && threadHoldingResource != null)
+        		threadHoldingResource.gainTickets(tickets);
+        }
+        
+        private void addMember(ThreadState state){
+        	Share share = shares.get(state.currency);
+        	if (share == null){
+        		share = new Share();
+        		shares.put(state.currency, share);
+        	}
+        	share.members.add(state);
+        	share.issued += state.priority;
+        }
+        
+        private void removeMember(ThreadState state){
+        	Share share = shares.get(state.currency);
+        	share.members.remove(state);
+        	share.issued -= state.priority;
+        	if (share.members.isEmpty())
+        		shares.remove(state.currency);
+        }
 
         public void acquire(KThread thread){
+        	if (transferPriority && threadHoldingResource != null)
+        		threadHoldingResource.gainTickets(-tree.totalTickets);
         	threadHoldingResource = getThreadState(thread);
         	if (transferPriority)
         		threadHoldingResource.gainTickets(tree.totalTickets);
@@ -277,7 +581,7 @@ public class LotteryScheduler extends Scheduler {
         }
         
         public void selfTest(int times){
-        	int n = tree.array.size();
+        	int n = tree.size + 1;
         	if (n == 1)
         		return;
         	int stat[] = new int[n];
@@ -288,14 +592,25 @@ public class LotteryScheduler extends Scheduler {
         	System.out.println("Peeked " + times + " times");
         	System.out.println("Total tickets: " + tree.totalTickets);
         	for (int i = 1; i < n; i++)
-        		System.out.println(tree.array.get(i).thread.toString() + ": have " + tree.array.get(i).tickets + " tickets, peeked " + stat[i] + " times, " + (times * 1.0 * tree.array.get(i).tickets / tree.totalTickets) + " times expected");
+        		System.out.println(tree.array[i].thread.toString() + ": have " + tree.array[i].tickets + " tickets, peeked " + stat[i] + " times, " + (times * 1.0 * tree.array[i].tickets / tree.totalTickets) + " times expected");
         }
         
     	BinaryIndexedTree tree = null;
     	ThreadState threadHoldingResource = null;
     	boolean transferPriority;
+    	/** The share of each currency with threads waiting here. */
+    	private HashMap<Currency, Share> shares = new HashMap<Currency, Share>();
     }
 
+    /**
+     * The most base tickets a thread can hold of its own, so that the total
+     * on a queue stays well within an <tt>int</tt>.
+     */
+    private static final int maxOwnTickets = 1 << 20;
+
+    /** The number of ticket holders a new queue has room for. */
+    private static final int initialCapacity = 8;
+
     public static final int priorityDefault = 1;
     public static final int priorityMinimum = 1;
     public static final int priorityMaximum = 7;
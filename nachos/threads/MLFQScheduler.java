@@ -0,0 +1,389 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Each thread is at one of several
+ * levels, and the next thread to be dequeued is always the thread at the
+ * highest level (level 0) that has been waiting longest.
+ *
+ * <p>
+ * Every thread starts at level 0. A thread that uses up the quantum of its
+ * level, whether in one time slice or spread over several, is moved down a
+ * level, where the quantum is twice as long. A thread that blocks or yields
+ * before its quantum is used keeps its level, so interactive and I/O-bound
+ * threads stay at the top, ahead of CPU-bound threads, while CPU-bound
+ * threads run for longer slices at the bottom.
+ *
+ * <p>
+ * To keep threads at the bottom from starving, every thread is moved back to
+ * level 0 once every <tt>MLFQScheduler.boostInterval</tt> ticks. The number
+ * of levels is set by <tt>MLFQScheduler.levels</tt>.
+ *
+ * <p>
+ * This scheduler does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	levels = Config.getInteger("MLFQScheduler.levels", 3);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  defaultBoostInterval);
+	Lib.assertTrue(levels > 0 && boostInterval > 0);
+	ioBoost = Config.getBoolean("MLFQScheduler.ioBoost", true);
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored; this scheduler does not
+     *					transfer priority.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Get the priority of the specified thread, which is the number of levels
+     * below it. A thread at the bottom level has priority 0.
+     *
+     * @param	thread	the thread to get the priority of.
+     * @return	the thread's priority.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return levels - 1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Get the quantum of the specified thread, which doubles at each level
+     * down.
+     *
+     * @param	thread	the thread to get the quantum of.
+     * @return	the thread's quantum, in ticks.
+     */
+    public int getQuantum(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getQuantum(getThreadState(thread).getLevel());
+    }
+
+    /**
+     * Preempt the running thread if a thread at a higher level is ready, so
+     * that a thread woken by the alarm does not wait for a thread at a lower
+     * level to use up its longer quantum.
+     *
+     * @param	thread	the running thread.
+     * @return	<tt>true</tt> if a thread at a higher level is ready.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	MultiLevelQueue readyQueue = (MultiLevelQueue) KThread.getReadyQueue();
+	return readyQueue.getTopLevel() < getThreadState(thread).getLevel();
+    }
+
+    /**
+     * Unless <tt>MLFQScheduler.ioBoost</tt> is false, move the specified
+     * thread, which was woken by a device, back to level 0 with a fresh
+     * quantum, so that an interactive thread does not wait behind the
+     * threads that have used up their quanta.
+     *
+     * @param	thread	the thread that was woken by a device.
+     */
+    public void boostAfterIO(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (!ioBoost)
+	    return;
+
+	ThreadState state = getThreadState(thread);
+	Lib.assertTrue(state.waitQueue == null);
+
+	state.refreshEpoch();
+	state.level = 0;
+	state.used = 0;
+    }
+
+    public ThreadQueue getWaitQueue(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).waitQueue;
+    }
+
+    /**
+     * Return the quantum of the specified level.
+     */
+    private int getQuantum(int level) {
+	return defaultQuantum << level;
+    }
+
+    /**
+     * Return the number of the current boost period. Threads and queues that
+     * were last updated in an earlier period are moved back to level 0.
+     */
+    private long getEpoch() {
+	return Machine.timer().getTime() / boostInterval;
+    }
+
+    /**
+     * Charge the current thread for the time it has run since it was
+     * dispatched or last charged, moving it down a level if this uses up its
+     * quantum. Called whenever a thread may be about to give up the
+     * processor, so that every slice is charged exactly once.
+     */
+    private void chargeCurrentThread() {
+	KThread thread = KThread.currentThread();
+	if (thread == null)
+	    return;
+
+	ThreadState state = getThreadState(thread);
+	long now = Machine.timer().getTime();
+	long start = Math.max(thread.getDispatchTime(), state.chargedTime);
+
+	state.getLevel();
+	state.used += now - start;
+	state.chargedTime = now;
+
+	if (state.waitQueue == null && state.used >= getQuantum(state.level) &&
+	    state.level < levels - 1) {
+	    state.level++;
+	    state.used = 0;
+	}
+    }
+
+    /**
+     * Test that a thread that keeps using its whole quantum is moved down,
+     * while a thread that blocks early keeps its level.
+     */
+    public static void selfTest() {
+	final MLFQScheduler scheduler =
+	    (MLFQScheduler) ThreadedKernel.scheduler;
+
+	KThread hog = new KThread(new Runnable() {
+		public void run() {
+		    long end = Machine.timer().getTime() +
+			scheduler.getQuantum(scheduler.levels - 1) * 2;
+		    while (Machine.timer().getTime() < end) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		    }
+		}
+	    }).setName("mlfq hog");
+
+	final int[] interactiveLevel = new int[1];
+	KThread interactive = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<10; i++)
+			ThreadedKernel.alarm.waitUntil(Stats.TimerTicks);
+
+		    boolean intStatus = Machine.interrupt().disable();
+		    interactiveLevel[0] =
+			scheduler.getThreadState(KThread.currentThread()).level;
+		    Machine.interrupt().restore(intStatus);
+		}
+	    }).setName("mlfq interactive");
+
+	hog.fork();
+	interactive.fork();
+
+	interactive.join();
+	boolean intStatus = Machine.interrupt().disable();
+	int hogLevel = scheduler.getThreadState(hog).level;
+	Machine.interrupt().restore(intStatus);
+	hog.join();
+
+	System.out.println("MLFQ: hog at level " + hogLevel
+			   + ", interactive thread at level "
+			   + interactiveLevel[0]);
+	Lib.assertTrue(interactiveLevel[0] == 0);
+	Lib.assertTrue(hogLevel > 0 || scheduler.levels == 1);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The default number of ticks between boosts.
+     */
+    public static final int defaultBoostInterval = 50 * Stats.TimerTicks;
+
+    private int levels;
+    private int boostInterval;
+    private boolean ioBoost;
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level.
+     */
+    protected class MultiLevelQueue extends ThreadQueue {
+	MultiLevelQueue() {
+	    lists = new LinkedList[levels];
+	    for (int i=0; i<levels; i++)
+		lists[i] = new LinkedList<ThreadState>();
+	    epoch = getEpoch();
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitQueue == null);
+
+	    boost();
+	    state.waitQueue = this;
+	    lists[state.getLevel()].add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+
+	    boost();
+	    for (int i=0; i<levels; i++) {
+		if (!lists[i].isEmpty()) {
+		    ThreadState state = lists[i].removeFirst();
+		    state.waitQueue = null;
+		    return state.thread;
+		}
+	    }
+
+	    return null;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    for (int i=0; i<levels; i++) {
+		if (lists[i].remove(state))
+		    break;
+	    }
+	    state.waitQueue = null;
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Return the highest level with a waiting thread, or the number of
+	 * levels if no thread is waiting.
+	 */
+	int getTopLevel() {
+	    boost();
+	    for (int i=0; i<levels; i++) {
+		if (!lists[i].isEmpty())
+		    return i;
+	    }
+	    return levels;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels; i++) {
+		for (Iterator j=lists[i].iterator(); j.hasNext(); )
+		    System.out.print(((ThreadState) j.next()).thread
+				     + " (level " + i + ") ");
+	    }
+	}
+
+	/**
+	 * If a boost is due, move every waiting thread to level 0, keeping
+	 * threads from higher levels ahead.
+	 */
+	private void boost() {
+	    long now = getEpoch();
+	    if (epoch == now)
+		return;
+
+	    epoch = now;
+	    for (int i=1; i<levels; i++) {
+		while (!lists[i].isEmpty()) {
+		    ThreadState state = lists[i].removeFirst();
+		    state.getLevel();
+		    lists[0].add(state);
+		}
+	    }
+	}
+
+	private LinkedList<ThreadState>[] lists;
+	private long epoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of the
+     * quantum of that level it has used.
+     */
+    protected class ThreadState {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	    epoch = getEpoch();
+	}
+
+	/**
+	 * Return the level of the associated thread, first moving it to level
+	 * 0 if there has been a boost since it was last updated.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	int getLevel() {
+	    refreshEpoch();
+	    return level;
+	}
+
+	/**
+	 * Move the associated thread to level 0 with a fresh quantum if there
+	 * has been a boost since it was last updated, and record the current
+	 * boost period.
+	 */
+	void refreshEpoch() {
+	    long now = getEpoch();
+	    if (epoch != now) {
+		epoch = now;
+		level = 0;
+		used = 0;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	KThread thread;
+	int level = 0;
+	/** The ticks of the current level's quantum used so far. */
+	long used = 0;
+	/** The time up to which the thread has been charged. */
+	long chargedTime = 0;
+	/** The boost period in which the level was last updated. */
+	long epoch;
+	/** The queue the associated thread is waiting on, if any. */
+	MultiLevelQueue waitQueue = null;
+    }
+}
@@ -4,10 +4,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -34,6 +30,8 @@ public class PriorityScheduler extends Scheduler {
      * Allocate a new priority scheduler.
      */
     public PriorityScheduler() {
+    	ioBoost = Config.getInteger("PriorityScheduler.ioBoost", 2);
+    	Lib.assertTrue(ioBoost >= 0);
     }
 
     /**
@@ -69,6 +67,47 @@ public class PriorityScheduler extends Scheduler {
     	getThreadState(thread).setPriority(priority);
     }
 
+    public int getQuantum(KThread thread) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	return getThreadState(thread).quantum;
+    }
+
+    public void setQuantum(KThread thread, int quantum) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	Lib.assertTrue(quantum > 0);
+
+    	getThreadState(thread).quantum = quantum;
+    }
+
+    /**
+     * Raise the effective priority of the specified thread, which was woken
+     * by a device, by <tt>PriorityScheduler.ioBoost</tt> levels. The boost
+     * falls by one level each time the thread gives up the processor without
+     * blocking, and is renewed each time a device wakes it again.
+     *
+     * @param	thread	the thread that was woken by a device.
+     */
+    public void boostAfterIO(KThread thread) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	getThreadState(thread).setBoost(ioBoost);
+    }
+
+    public ThreadQueue getWaitQueue(KThread thread) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	return getThreadState(thread).resourceWaitQueue;
+    }
+
+    public KThread getResourceHolder(ThreadQueue queue) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	ThreadState holder = ((PriorityQueue) queue).resAccessing;
+    	return holder == null ? null : holder.thread;
+    }
+
     public boolean increasePriority() {
     	boolean intStatus = Machine.interrupt().disable();
 
@@ -112,6 +151,9 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;
 
+    /** The levels by which a thread woken by a device is boosted. */
+    private int ioBoost;
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -127,6 +169,15 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one FIFO bucket per effective priority, so
+     * the next thread is the first in the highest non-empty bucket. Each
+     * bucket is a doubly linked list threaded through the waiting threads'
+     * states, so adding, picking and removing a thread take constant time
+     * and allocate nothing. A thread whose effective priority changes while
+     * it waits is moved to the end of its new bucket by
+     * <tt>ThreadState.updatePriority()</tt>.
      */
     protected class PriorityQueue extends ThreadQueue {
     	PriorityQueue() {
@@ -134,21 +185,21 @@ public class PriorityScheduler extends Scheduler {
     	
     	PriorityQueue(boolean transferPriority) {
     		this.transferPriority = transferPriority;
-    		//waitQueue = new LinkedList<ThreadState>();
     		resAccessing = null;
-    		counter = 0;
     		donation = 0;
     	}
 
     	public void waitForAccess(KThread thread) {
     		Lib.assertTrue(Machine.interrupt().disabled());
-    		getThreadState(thread).waitForAccess(this , counter++);
+    		getThreadState(thread).waitForAccess(this);
     	}
 
     	public void acquire(KThread thread) {
     		Lib.assertTrue(Machine.interrupt().disabled());
     		if (!transferPriority)
     			return;
+    		if (resAccessing != null)
+    			resAccessing.release(this);
     		getThreadState(thread).acquire(this);
     		resAccessing = getThreadState(thread);
     	}	
@@ -166,7 +217,7 @@ public class PriorityScheduler extends Scheduler {
     		if (nextThreadState == null) 
     			return null;
     		
-    		waitQueue.remove(nextThreadState);
+    		removeFromWaitQueue(nextThreadState);
     		nextThreadState.ready();
     		
     		donatePriority();
@@ -175,6 +226,20 @@ public class PriorityScheduler extends Scheduler {
     		return nextThreadState.thread;
     	}
 
+    	public boolean remove(KThread thread) {
+    		Lib.assertTrue(Machine.interrupt().disabled());
+
+    		ThreadState ts = getThreadState(thread);
+    		if (ts.resourceWaitQueue != this)
+    			return false;
+
+    		removeFromWaitQueue(ts);
+    		ts.ready();
+
+    		donatePriority();
+    		return true;
+    	}
+
     	/**
     	 * Return the next thread that <tt>nextThread()</tt> would return,
     	 * without modifying the state of this queue.
@@ -183,56 +248,68 @@ public class PriorityScheduler extends Scheduler {
     	 *		return.
     	 */
     	protected ThreadState pickNextThread() {
-    		ThreadState nextThreadState = null;
-    		int maxPriority = -1;
-    		int addTime = Integer.MAX_VALUE;
-    		
-    		for (int i = 0; i < waitQueue.size(); i++) {
-    			ThreadState ts = waitQueue.get(i);
-    			int tmpPriority = ts.getEffectivePriority();
-    			if (tmpPriority > maxPriority) {
-    				maxPriority = tmpPriority;
-    				addTime = ts.addTime;
-    				nextThreadState = ts;
-    			}
-    			else if (tmpPriority == maxPriority && addTime > ts.addTime) {
-    				addTime = ts.addTime;
-    				nextThreadState = ts;
-    			}
+    		for (int i = priorityMaximum; i >= priorityMinimum; i--) {
+    			if (first[i] != null)
+    				return first[i];
     		}
-    		return nextThreadState;
+    		return null;
     	}
 
     	public void print() {
     		Lib.assertTrue(Machine.interrupt().disabled());
     		
-    		Iterator it = waitQueue.iterator();
-    		
-    		if (it.hasNext())
+    		if (size > 0)
     			System.out.println("===========");
-    		while (it.hasNext()) {
-    			ThreadState ts = (ThreadState)it.next();
-    			ts.print();
+    		for (int i = priorityMaximum; i >= priorityMinimum; i--) {
+    			for (ThreadState ts = first[i]; ts != null; ts = ts.nextWaiter)
+    				ts.print();
     		}
     	}
 
     	protected int getMaxPriority() {
-    		int maxPriority = priorityMinimum;
     		if (transferPriority) {
-    			for (int i = 0; i < waitQueue.size(); i++) {
-    				ThreadState ts = waitQueue.get(i);
-    				maxPriority = Math.max(maxPriority , ts.getEffectivePriority());
+    			for (int i = priorityMaximum; i > priorityMinimum; i--) {
+    				if (first[i] != null)
+    					return i;
     			}
     		}
-    		return maxPriority;
+    		return priorityMinimum;
     	}
     	
+    	/**
+    	 * Remove a waiting thread from its bucket. The thread must still have
+    	 * the effective priority it was added with.
+    	 */
     	protected void removeFromWaitQueue(ThreadState ts) {
-    		Lib.assertTrue(waitQueue.remove(ts));
+    		Lib.assertTrue(ts.resourceWaitQueue == this);
+
+    		if (ts.prevWaiter != null)
+    			ts.prevWaiter.nextWaiter = ts.nextWaiter;
+    		else
+    			first[ts.priority] = ts.nextWaiter;
+    		if (ts.nextWaiter != null)
+    			ts.nextWaiter.prevWaiter = ts.prevWaiter;
+    		else
+    			last[ts.priority] = ts.prevWaiter;
+
+    		ts.prevWaiter = ts.nextWaiter = null;
+    		size--;
     	}
     	
+    	/**
+    	 * Add a waiting thread to the end of the bucket for its effective
+    	 * priority.
+    	 */
     	protected void addToWaitQueue(ThreadState ts) {
-    		waitQueue.add(ts);
+    		ts.prevWaiter = last[ts.priority];
+    		ts.nextWaiter = null;
+    		if (last[ts.priority] != null)
+    			last[ts.priority].nextWaiter = ts;
+    		else
+    			first[ts.priority] = ts;
+    		last[ts.priority] = ts;
+
+    		size++;
     		donatePriority();
     	}
     	
@@ -245,11 +322,10 @@ public class PriorityScheduler extends Scheduler {
     		if (newDonation == donation)
     			return;
 
+    		int oldDonation = donation;
     		donation = newDonation;
-    		if (this.resAccessing != null) {
-    			this.resAccessing.resources.put(this , donation);
-    			this.resAccessing.updatePriority();
-    		}
+    		if (this.resAccessing != null)
+    			this.resAccessing.changeDonation(oldDonation, newDonation);
     	}
     	
     	/**
@@ -261,9 +337,13 @@ public class PriorityScheduler extends Scheduler {
     	/** the thread accessing to resources */
     	protected ThreadState resAccessing;
     	
-    	protected LinkedList<ThreadState> waitQueue = new LinkedList<ThreadState>();
+    	/** The first waiting thread in each bucket, by effective priority. */
+    	protected ThreadState[] first = new ThreadState[priorityMaximum + 1];
+    	/** The last waiting thread in each bucket, by effective priority. */
+    	protected ThreadState[] last = new ThreadState[priorityMaximum + 1];
     	
-    	protected int counter;
+    	/** The number of waiting threads. */
+    	protected int size = 0;
     	
     	protected int donation;
     }
@@ -286,7 +366,6 @@ public class PriorityScheduler extends Scheduler {
    		 */
    		public ThreadState(KThread thread) {
    			this.thread = thread;
-   			//resources = new Hashtable<PriorityQueue , Integer>();
    			resourceWaitQueue = null;
    			setPriority(priorityDefault);
    		}
@@ -323,6 +402,21 @@ public class PriorityScheduler extends Scheduler {
    			updatePriority();
     	}
 
+    	/**
+    	 * Set the number of levels by which the effective priority of the
+    	 * associated thread is raised above its own priority, up to
+    	 * <tt>priorityMaximum</tt>.
+    	 *
+    	 * @param	boost	the new boost.
+    	 */
+    	public void setBoost(int boost) {
+    		if (this.boost == boost)
+    			return;
+    		this.boost = boost;
+
+    		updatePriority();
+    	}
+
     	/**
     	 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
     	 * the associated thread) is invoked on the specified priority queue.
@@ -335,12 +429,15 @@ public class PriorityScheduler extends Scheduler {
     	 *
     	 * @see	nachos.threads.ThreadQueue#waitForAccess
     	 */
-    	public void waitForAccess(PriorityQueue waitQueue , int time) {
+    	public void waitForAccess(PriorityQueue waitQueue) {
     		/** add in waitQueue */
-    		Lib.assertTrue(!waitQueue.waitQueue.contains(this));
     		Lib.assertTrue(this.resourceWaitQueue == null);
 
-    		this.addTime = time;
+    		/** the thread gave up the processor without blocking */
+    		if (boost > 0 && waitQueue == KThread.getReadyQueue() &&
+    				thread == KThread.currentThread())
+    			setBoost(boost - 1);
+
     		this.resourceWaitQueue = waitQueue;
     		
     		waitQueue.addToWaitQueue(this);
@@ -357,12 +454,13 @@ public class PriorityScheduler extends Scheduler {
     	 * @see	nachos.threads.ThreadQueue#nextThread
     	 */
     	public void acquire(PriorityQueue waitQueue) {	
-    		resources.put(waitQueue , waitQueue.donation);
+    		donations[waitQueue.donation]++;
     		this.updatePriority();
     	}
     	
     	public void release(PriorityQueue waitQueue) {
-    		resources.remove(waitQueue);
+    		Lib.assertTrue(donations[waitQueue.donation] > 0);
+    		donations[waitQueue.donation]--;
     		this.updatePriority();
     	}
     	
@@ -375,31 +473,44 @@ public class PriorityScheduler extends Scheduler {
     		System.out.println(thread.getName() + " has priority " + priority);
     	}
     	
-    	protected void removeFromResources(PriorityQueue waitQueue) {
-    		Lib.assertTrue(resources.remove(waitQueue) != null);
-    	}
-    	
-    	protected void addToResources(PriorityQueue waitQueue) {
-    		resources.put(waitQueue , waitQueue.donation);
+    	/**
+    	 * Called when the donation of a queue held by the associated thread
+    	 * changes from <i>oldDonation</i> to <i>newDonation</i>.
+    	 */
+    	protected void changeDonation(int oldDonation, int newDonation) {
+    		Lib.assertTrue(donations[oldDonation] > 0);
+    		donations[oldDonation]--;
+    		donations[newDonation]++;
     		updatePriority();
     	}
     	
+    	/**
+    	 * Recompute the effective priority from the donations of the held
+    	 * queues. If it changed, move the thread to its new bucket in the
+    	 * queue it waits on, which passes the change on to that queue's
+    	 * holder; propagation stops at the first thread whose effective
+    	 * priority is unchanged.
+    	 */
     	protected void updatePriority() {
-    		int newEffectivePriority = originalPriority;
-    		if (!resources.isEmpty()) {
-    			for (Enumeration<PriorityQueue> queues = resources.keys(); 
-    					queues.hasMoreElements(); ) {
-    				PriorityQueue q = queues.nextElement();
-    				newEffectivePriority = Math.max(newEffectivePriority , 
-    					q.donation);
+    		int newEffectivePriority =
+    			Math.min(priorityMaximum, originalPriority + boost);
+    		for (int p = priorityMaximum; p > newEffectivePriority; p--) {
+    			if (donations[p] > 0) {
+    				newEffectivePriority = p;
+    				break;
     			}
     		}
     		if (newEffectivePriority == priority)
     			return;
     		
-    		priority = newEffectivePriority;
-    		if (resourceWaitQueue != null)
-    			resourceWaitQueue.donatePriority();
+    		if (resourceWaitQueue != null) {
+    			resourceWaitQueue.removeFromWaitQueue(this);
+    			priority = newEffectivePriority;
+    			resourceWaitQueue.addToWaitQueue(this);
+    		}
+    		else {
+    			priority = newEffectivePriority;
+    		}
     	}
     	
    		/** The thread with which this object is associated. */
@@ -407,10 +518,21 @@ public class PriorityScheduler extends Scheduler {
     	/** The priority of the associated thread. */
     	protected int priority;
     	protected int originalPriority;
-    	protected int addTime;
-    	/** All resources holding by the associated thread */
-    	protected Hashtable<PriorityQueue , Integer> resources = new Hashtable<PriorityQueue , Integer>();
+    	/** The levels by which a device wake raised the priority. */
+    	protected int boost = 0;
+    	/** The time-slice quantum of the associated thread, in ticks. */
+    	protected int quantum = defaultQuantum;
+    	/**
+    	 * For each priority, the number of queues held by the associated
+    	 * thread whose donation is that priority.
+    	 */
+    	protected int[] donations = new int[priorityMaximum + 1];
     	/** Waiting caching queue: all other threads waiting with the associated thread */
     	protected PriorityQueue resourceWaitQueue;
+    	/**
+    	 * The neighbours of the associated thread in its bucket of
+    	 * <tt>resourceWaitQueue</tt>.
+    	 */
+    	protected ThreadState prevWaiter = null, nextWaiter = null;
     }
 }
\ No newline at end of file
@@ -0,0 +1,337 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of
+ * readers at once, or by a single writer:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for
+ * the lock, then join the readers holding it.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, then hold
+ * it alone.
+ * <li><tt>releaseRead()</tt> and <tt>releaseWrite()</tt>: give up the lock,
+ * handing it to the next writer or to every waiting reader.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind
+ * it, so a steady stream of readers cannot starve writers. A <i>fair</i> lock
+ * also keeps writers from starving readers, by admitting every waiting reader
+ * whenever a writer releases it, before the next writer.
+ *
+ * <p>
+ * Waiting readers and writers donate priority to one <i>owner</i> of the
+ * lock: the writer that holds it, or one of the readers that hold it, which
+ * passes the donations on to another reader when it releases the lock.
+ * Only the schedulers that report the holder of a queue (see
+ * <tt>Scheduler.getResourceHolder()</tt>) are moved to a new owner while
+ * threads are waiting.
+ *
+ * <p>
+ * A thread must not acquire a lock it already holds, for reading or for
+ * writing.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock that prefers writers. The lock will
+     * initially be free.
+     */
+    public ReadWriteLock() {
+	this(false);
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	fair	<tt>true</tt> if a writer releasing the lock should
+     *			admit the waiting readers before the next writer.
+     */
+    public ReadWriteLock(boolean fair) {
+	this.fair = fair;
+	readQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+	writeQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+    }
+
+    /**
+     * Atomically acquire this lock for reading, together with any other
+     * readers.
+     */
+    public void acquireRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread && !readers.contains(thread));
+
+	if (writer != null || waitingWriters > 0) {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    if (readers.isEmpty())
+		setOwner(thread);
+	    readers.add(thread);
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * reading. The last reader to release it admits the next writer.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(readers.remove(thread));
+
+	if (readers.isEmpty()) {
+	    if (waitingWriters > 0)
+		admitWriter();
+	    else
+		clearOwner();
+	}
+	else if (owner == thread) {
+	    setOwner(readers.get(0));
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing, waiting until no other
+     * thread holds it.
+     */
+    public void acquireWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread && !readers.contains(thread));
+
+	if (writer != null || !readers.isEmpty()) {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    setOwner(thread);
+	    writer = thread;
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+
+	if (waitingWriters > 0 && !(fair && waitingReaders > 0))
+	    admitWriter();
+	else
+	    admitReaders();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Hand this lock to the writer that has waited longest, or to the one
+     * the scheduler prefers.
+     */
+    private void admitWriter() {
+	writer = writeQueue.nextThread();
+	Lib.assertTrue(writer != null);
+	waitingWriters--;
+
+	owner = writer;
+	moveQueue(readQueue, waitingReaders, writer);
+
+	writer.ready();
+    }
+
+    /**
+     * Hand this lock to every waiting reader at once, or leave it free if
+     * none are waiting.
+     */
+    private void admitReaders() {
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    waitingReaders--;
+	    readers.add(thread);
+	    thread.ready();
+	}
+	Lib.assertTrue(waitingReaders == 0);
+
+	if (readers.isEmpty())
+	    clearOwner();
+	else
+	    setOwner(readers.get(0));
+    }
+
+    /**
+     * Make the specified thread the owner of this lock, to which the threads
+     * waiting on both queues donate priority.
+     */
+    private void setOwner(KThread thread) {
+	owner = thread;
+	moveQueue(readQueue, waitingReaders, thread);
+	moveQueue(writeQueue, waitingWriters, thread);
+    }
+
+    /**
+     * Leave this lock free, with no owner.
+     */
+    private void clearOwner() {
+	Lib.assertTrue(waitingReaders == 0 && waitingWriters == 0);
+
+	owner = null;
+	readQueue.nextThread();
+	writeQueue.nextThread();
+    }
+
+    /**
+     * Give access to the specified queue to the specified thread. A queue
+     * with waiting threads is only moved if the scheduler reports its holder,
+     * since the others do not expect access to change hands while threads
+     * wait.
+     */
+    private void moveQueue(ThreadQueue queue, int waiting, KThread thread) {
+	if (waiting == 0 ||
+	    ThreadedKernel.scheduler.getResourceHolder(queue) != null)
+	    queue.acquire(thread);
+    }
+
+    /**
+     * Test that readers share the lock, that a waiting writer holds off new
+     * readers, that a fair lock admits waiting readers before the next
+     * writer, and that waiting readers and writers donate priority to a
+     * reader that holds the lock.
+     */
+    public static void selfTest() {
+	for (int i=0; i<2; i++) {
+	    boolean fair = (i == 1);
+	    final ReadWriteLock lock = new ReadWriteLock(fair);
+	    final StringBuffer order = new StringBuffer();
+
+	    lock.acquireRead();
+
+	    KThread reader = newTestThread(lock, false, order, "r");
+	    reader.fork();
+	    reader.join();
+	    Lib.assertTrue(order.toString().equals("r"));
+
+	    KThread writer = newTestThread(lock, true, order, "w");
+	    reader = newTestThread(lock, false, order, "r");
+	    setTestPriority(writer, 4);
+	    setTestPriority(reader, 5);
+
+	    writer.fork();
+	    while (lock.waitingWriters < 1)
+		KThread.yield();
+	    reader.fork();
+	    while (lock.waitingReaders < 1)
+		KThread.yield();
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    if (ThreadedKernel.scheduler instanceof PriorityScheduler)
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority()
+			       == 5);
+	    Machine.interrupt().restore(intStatus);
+
+	    lock.releaseRead();
+	    writer.join();
+	    reader.join();
+	    Lib.assertTrue(order.toString().equals("rwr"));
+
+	    order.setLength(0);
+	    lock.acquireWrite();
+
+	    writer = newTestThread(lock, true, order, "w");
+	    reader = newTestThread(lock, false, order, "r");
+	    writer.fork();
+	    reader.fork();
+	    while (lock.waitingWriters < 1 || lock.waitingReaders < 1)
+		KThread.yield();
+
+	    lock.releaseWrite();
+	    writer.join();
+	    reader.join();
+	    Lib.assertTrue(order.toString().equals(fair ? "rw" : "wr"));
+	}
+    }
+
+    /**
+     * Return a thread that holds the specified lock just long enough to
+     * append a tag to <i>order</i>.
+     */
+    private static KThread newTestThread(final ReadWriteLock lock,
+					 final boolean write,
+					 final StringBuffer order,
+					 final String tag) {
+	return new KThread(new Runnable() {
+		public void run() {
+		    if (write)
+			lock.acquireWrite();
+		    else
+			lock.acquireRead();
+
+		    order.append(tag);
+
+		    if (write)
+			lock.releaseWrite();
+		    else
+			lock.releaseRead();
+		}
+	    }).setName("read-write " + (write ? "writer" : "reader"));
+    }
+
+    /**
+     * Set the priority of a test thread, under a priority scheduler.
+     */
+    private static void setTestPriority(KThread thread, int priority) {
+	if (!(ThreadedKernel.scheduler instanceof PriorityScheduler))
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(thread, priority);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private boolean fair;
+
+    /** The writer holding this lock, if any. */
+    private KThread writer = null;
+    /** The readers holding this lock. */
+    private ArrayList<KThread> readers = new ArrayList<KThread>();
+    /** The thread that the waiting threads donate priority to. */
+    private KThread owner = null;
+
+    private ThreadQueue readQueue;
+    private ThreadQueue writeQueue;
+    private int waitingReaders = 0;
+    private int waitingWriters = 0;
+}
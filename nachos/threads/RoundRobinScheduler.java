@@ -17,6 +17,7 @@ public class RoundRobinScheduler extends Scheduler {
      * Allocate a new round-robin scheduler.
      */
     public RoundRobinScheduler() {
+	ioBoost = Config.getBoolean("RoundRobinScheduler.ioBoost", true);
     }
     
     /**
@@ -30,16 +31,54 @@ public class RoundRobinScheduler extends Scheduler {
 	return new FifoQueue();
     }
 
+    /**
+     * Unless <tt>RoundRobinScheduler.ioBoost</tt> is false, let the
+     * specified thread, which was woken by a device, go ahead of the threads
+     * already waiting the next time it joins a queue, behind any other
+     * threads woken by devices.
+     *
+     * @param	thread	the thread that was woken by a device.
+     */
+    public void boostAfterIO(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (ioBoost)
+	    getThreadState(thread).boosted = true;
+    }
+
+    private boolean ioBoost;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
     private class FifoQueue extends ThreadQueue {
 	/**
-	 * Add a thread to the end of the wait queue.
+	 * Add a thread to the end of the wait queue, or to the end of the
+	 * threads woken by devices if it is one of them.
 	 *
 	 * @param	thread	the thread to append to the queue.
 	 */    
 	public void waitForAccess(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	    waitQueue.add(thread);
+	    ThreadState state = getThreadState(thread);
+	    if (state.boosted) {
+		state.boosted = false;
+		boostedQueue.add(thread);
+	    }
+	    else {
+		waitQueue.add(thread);
+	    }
 	}
 
 	/**
@@ -52,6 +91,9 @@ public class RoundRobinScheduler extends Scheduler {
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
+	    if (!boostedQueue.isEmpty())
+		return (KThread) boostedQueue.removeFirst();
+
 	    if (waitQueue.isEmpty())
 		return null;
 
@@ -66,7 +108,19 @@ public class RoundRobinScheduler extends Scheduler {
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	    Lib.assertTrue(waitQueue.isEmpty());
+	    Lib.assertTrue(waitQueue.isEmpty() && boostedQueue.isEmpty());
+	}
+
+	/**
+	 * Remove a thread that has stopped waiting from the queue.
+	 *
+	 * @param	thread	the thread that has stopped waiting.
+	 * @return	<tt>true</tt> if the thread was on the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return boostedQueue.remove(thread) || waitQueue.remove(thread);
 	}
 
 	/**
@@ -75,10 +129,28 @@ public class RoundRobinScheduler extends Scheduler {
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 
+	    for (Iterator i=boostedQueue.iterator(); i.hasNext(); )
+		System.out.print((KThread) i.next() + " ");
 	    for (Iterator i=waitQueue.iterator(); i.hasNext(); )
 		System.out.print((KThread) i.next() + " ");
 	}
 
 	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+	/** Threads woken by a device, which go first. */
+	private LinkedList<KThread> boostedQueue = new LinkedList<KThread>();
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * <tt>true</tt> if the associated thread was woken by a device, and
+	 * goes ahead of the other waiting threads the next time it joins a
+	 * queue.
+	 */
+	boolean boosted = false;
     }
 }
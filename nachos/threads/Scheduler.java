@@ -131,6 +131,97 @@ public abstract class Scheduler {
 	setPriority(KThread.currentThread(), priority);
     }
 
+    /**
+     * Get the time-slice quantum of the specified thread, in ticks. The
+     * alarm preempts a running thread only once it has run for about this
+     * long since it was last dispatched. Must be called with interrupts
+     * disabled.
+     *
+     * @param	thread	the thread to get the quantum of.
+     * @return	the thread's quantum.
+     */
+    public int getQuantum(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return defaultQuantum;
+    }
+
+    /**
+     * Set the time-slice quantum of the specified thread. Must be called
+     * with interrupts disabled. Schedulers that keep no per-thread state
+     * ignore this, and every thread gets <tt>defaultQuantum</tt>.
+     *
+     * @param	thread	the thread to set the quantum of.
+     * @param	quantum	the new quantum, in ticks.
+     */
+    public void setQuantum(KThread thread, int quantum) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Return <tt>true</tt> if a thread has become ready that should run
+     * before the specified running thread, even though its quantum has not
+     * expired. The alarm checks this on every timer interrupt. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread	the running thread.
+     * @return	<tt>true</tt> if the running thread should yield now.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
+    /**
+     * Called when the specified thread, having waited for a device such as
+     * the console, the network, or the disk, has been taken off the queue it
+     * waited on and is about to be made ready. A scheduler can give the
+     * thread a temporary boost here, so that interactive threads are not
+     * kept waiting behind threads that never block. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread that was woken by a device.
+     */
+    public void boostAfterIO(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Get the queue that the specified thread is waiting on. Must be called
+     * with interrupts disabled. Schedulers that do not keep track of this
+     * return <tt>null</tt>.
+     *
+     * @param	thread	the thread to get the wait queue of.
+     * @return	the queue the thread is waiting on, or <tt>null</tt> if it is
+     *		not waiting or the scheduler does not know.
+     */
+    public ThreadQueue getWaitQueue(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return null;
+    }
+
+    /**
+     * Get the thread that has access to whatever is guarded by the specified
+     * queue, such as the holder of a lock or the target of a join. Must be
+     * called with interrupts disabled. Schedulers that do not keep track of
+     * this return <tt>null</tt>.
+     *
+     * @param	queue	a queue created by this scheduler.
+     * @return	the thread with access, or <tt>null</tt> if there is none or
+     *		the scheduler does not know.
+     */
+    public KThread getResourceHolder(ThreadQueue queue) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return null;
+    }
+
+    /**
+     * The quantum every thread starts with, one timer period. Since the alarm
+     * rounds quanta to the nearest timer interrupt, a thread with this
+     * quantum is preempted on every timer interrupt except one that comes
+     * less than half a timer period after it was dispatched.
+     */
+    public static final int defaultQuantum = Stats.TimerTicks;
+
     /**
      * If possible, raise the priority of the current thread in some
      * scheduler-dependent way.
@@ -0,0 +1,109 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A trace of the decisions made on the ready queue, kept in a fixed-size ring
+ * buffer so that recording an event never allocates memory. When the buffer
+ * is full, each new event overwrites the oldest.
+ *
+ * <p>
+ * Each event records the time, the kind of event, the thread it concerns, the
+ * thread that was running, the thread's effective priority (or tickets, for
+ * the schedulers that use tickets), and the number of threads left on the
+ * ready queue.
+ *
+ * <p>
+ * Tracing is enabled by setting <tt>SchedulerTrace.size</tt> to the number of
+ * events to keep. The trace is printed as a timeline when the machine halts.
+ * While tracing is disabled, <tt>KThread</tt> only tests a static reference
+ * before each ready queue operation.
+ */
+public class SchedulerTrace {
+    /**
+     * Allocate a new trace that keeps the specified number of events.
+     *
+     * @param	size	the number of events to keep.
+     */
+    public SchedulerTrace(int size) {
+	Lib.assertTrue(size > 0);
+
+	this.size = size;
+	times = new long[size];
+	fields = new int[size * numFields];
+    }
+
+    /**
+     * Record an event. Must be called with interrupts disabled.
+     *
+     * @param	event	the kind of event: <tt>eventReady</tt>,
+     *			<tt>eventDispatch</tt>, <tt>eventIdle</tt>, or
+     *			<tt>eventAcquire</tt>.
+     * @param	thread	the thread the event concerns.
+     * @param	current	the thread that was running.
+     */
+    void record(int event, KThread thread, KThread current) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (event == eventReady)
+	    readyThreads++;
+	else if (event == eventDispatch)
+	    readyThreads--;
+
+	int slot = (int) (numEvents % size);
+	int base = slot * numFields;
+
+	times[slot] = Machine.timer().getTime();
+	fields[base] = event;
+	fields[base+1] = thread.getID();
+	fields[base+2] = current == null ? -1 : current.getID();
+	fields[base+3] = ThreadedKernel.scheduler.getEffectivePriority(thread);
+	fields[base+4] = readyThreads;
+
+	numEvents++;
+    }
+
+    /**
+     * Print the events still in the buffer, oldest first, one per line.
+     */
+    public void print() {
+	long first = Math.max(0, numEvents - size);
+
+	System.out.println("Scheduler trace: " + (numEvents - first) + " of "
+			   + numEvents + " events");
+
+	for (long i=first; i<numEvents; i++) {
+	    int slot = (int) (i % size);
+	    int base = slot * numFields;
+
+	    String line = "  " + times[slot] + ": "
+		+ eventNames[fields[base]] + " #" + fields[base+1]
+		+ " (priority " + fields[base+3] + ")";
+
+	    if (fields[base] != eventReady && fields[base+2] >= 0)
+		line += " after #" + fields[base+2];
+
+	    System.out.println(line + ", " + fields[base+4] + " ready");
+	}
+    }
+
+    /** A thread was added to the ready queue. */
+    static final int eventReady = 0;
+    /** A thread was taken from the ready queue to run. */
+    static final int eventDispatch = 1;
+    /** The ready queue was empty, so the idle thread was run. */
+    static final int eventIdle = 2;
+    /** A thread was given access to a new ready queue. */
+    static final int eventAcquire = 3;
+
+    private static final String[] eventNames =
+	{ "ready", "dispatch", "idle", "acquire" };
+
+    private static final int numFields = 5;
+
+    private int size;
+    private long[] times;
+    private int[] fields;
+    private long numEvents = 0;
+    private int readyThreads = 0;
+}
@@ -31,6 +31,22 @@ public class Semaphore {
 	value = initialValue;
     }
 
+    /**
+     * Allocate a new semaphore that may be signalled by a device.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	device		<tt>true</tt> if this semaphore is signalled
+     *				when a device completes, in which case
+     *				threads it wakes are given the scheduler's
+     *				I/O boost.
+     *
+     * @see	nachos.threads.Scheduler#boostAfterIO
+     */
+    public Semaphore(int initialValue, boolean device) {
+	this(initialValue);
+	this.device = device;
+    }
+
     /**
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
@@ -48,15 +64,52 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * giving up after at least <i>timeout</i> ticks.
+     *
+     * @param	timeout	the minimum number of clock ticks to wait, or 0 not
+     *			to wait at all.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean P(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean decremented = true;
+	if (value > 0)
+	    value--;
+	else if (timeout <= 0)
+	    decremented = false;
+	else
+	    decremented = ThreadedKernel.alarm.waitForAccess(waitQueue, timeout);
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
      */
     public void V() {
+	V(device);
+    }
+
+    /**
+     * Atomically increment this semaphore and wake up at most one other thread
+     * sleeping on this semaphore, giving it the scheduler's I/O boost if
+     * <i>device</i> is <tt>true</tt>.
+     *
+     * @param	device	<tt>true</tt> if the wake-up is signalled by a device.
+     */
+    void V(boolean device) {
 	boolean intStatus = Machine.interrupt().disable();
 
 	KThread thread = waitQueue.nextThread();
 	if (thread != null) {
+	    if (device)
+		ThreadedKernel.scheduler.boostAfterIO(thread);
 	    thread.ready();
 	}
 	else {
@@ -96,9 +149,22 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	final Semaphore timed = new Semaphore(0);
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!timed.P(2 * Stats.TimerTicks));
+	Lib.assertTrue(Machine.timer().getTime() - start >= 2 * Stats.TimerTicks);
+
+	new KThread(new Runnable() {
+		public void run() {
+		    timed.V();
+		}
+	    }).setName("timed V").fork();
+	Lib.assertTrue(timed.P(100 * Stats.TimerTicks));
     }
 
     private int value;
+    private boolean device = false;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
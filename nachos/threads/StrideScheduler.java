@@ -0,0 +1,453 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * A scheduler that gives each thread a share of the processor in proportion
+ * to its tickets, deterministically.
+ *
+ * <p>
+ * Each thread has a <i>stride</i>, inversely proportional to its tickets, and
+ * a <i>pass</i>, the virtual time at which its next dequeue would end. The
+ * next thread to be dequeued is always the waiting thread with the lowest
+ * pass, which is then advanced by its stride. However many dequeues there
+ * are, a thread's number of dequeues differs from its share of the tickets by
+ * less than the number of waiting threads, unlike a lottery scheduler, whose
+ * error grows with the square root of the number of dequeues.
+ *
+ * <p>
+ * Each queue keeps its own virtual time, the pass of the last thread
+ * dequeued from it, and a thread's pass only means something on the queue
+ * it waits on. A thread that leaves a queue keeps how far its pass was ahead
+ * of that queue's time, and a thread that joins a queue is placed that far,
+ * but at least one stride, ahead of the queue's time. So a thread that moves
+ * between the ready queue and a lock's queue is neither stuck behind the
+ * threads of a queue whose time lags its own, nor let ahead of them for as
+ * long as it was blocked.
+ *
+ * <p>
+ * Like a lottery scheduler, tickets are transferred through locks and joins,
+ * and these tickets add to the holder's own tickets.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+    	return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	return getThreadState(thread).tickets;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	Lib.assertTrue(priority >= priorityMinimum &&
+    			priority <= priorityMaximum);
+
+    	getThreadState(thread).setPriority(priority);
+    }
+
+    public int getQuantum(KThread thread) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	return getThreadState(thread).quantum;
+    }
+
+    public void setQuantum(KThread thread, int quantum) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	Lib.assertTrue(quantum > 0);
+
+    	getThreadState(thread).quantum = quantum;
+    }
+
+    public ThreadQueue getWaitQueue(KThread thread) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	return getThreadState(thread).waitQueue;
+    }
+
+    public KThread getResourceHolder(ThreadQueue queue) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	StrideQueue q = (StrideQueue) queue;
+    	if (!q.transferPriority || q.holder == null)
+    		return null;
+    	return q.holder.thread;
+    }
+
+    public boolean increasePriority() {
+    	boolean intStatus = Machine.interrupt().disable();
+
+    	KThread thread = KThread.currentThread();
+
+    	int priority = getPriority(thread);
+    	if (priority == priorityMaximum) {
+    		Machine.interrupt().restore(intStatus);
+    		return false;
+    	}
+
+    	setPriority(thread, priority+1);
+
+    	Machine.interrupt().restore(intStatus);
+    	return true;
+    }
+
+    public boolean decreasePriority() {
+    	boolean intStatus = Machine.interrupt().disable();
+
+    	KThread thread = KThread.currentThread();
+
+    	int priority = getPriority(thread);
+    	if (priority == priorityMinimum) {
+    		Machine.interrupt().restore(intStatus);
+    		return false;
+    	}
+
+    	setPriority(thread, priority-1);
+
+    	Machine.interrupt().restore(intStatus);
+    	return true;
+    }
+
+    /**
+     * Test that this scheduler divides dequeues in proportion to tickets,
+     * transfers tickets through a queue that transfers priority, and keeps a
+     * thread's pass relative to the queue it waits on. Must be called with
+     * interrupts disabled.
+     */
+    public void selfTest() {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	int[] shares = { 1, 2, 3, 10 };
+    	KThread[] threads = new KThread[shares.length];
+    	int[] counts = new int[shares.length];
+    	int totalShares = 0;
+    	double maxError = 0;
+
+    	StrideQueue queue = new StrideQueue(false);
+    	for (int i = 0; i < shares.length; i++) {
+    		threads[i] = new KThread().setName("stride " + shares[i]);
+    		setPriority(threads[i], shares[i]);
+    		queue.waitForAccess(threads[i]);
+    		totalShares += shares[i];
+    	}
+
+    	int rounds = totalShares * 100;
+    	for (int round = 1; round <= rounds; round++) {
+    		KThread thread = queue.nextThread();
+    		for (int i = 0; i < shares.length; i++) {
+    			if (threads[i] == thread)
+    				counts[i]++;
+    		}
+    		queue.waitForAccess(thread);
+
+    		// check the error at every point, not just at the end
+    		for (int i = 0; i < shares.length; i++) {
+    			double expected = (double) round * shares[i] / totalShares;
+    			maxError = Math.max(maxError, Math.abs(counts[i] - expected));
+    		}
+    	}
+
+    	for (int i = 0; i < shares.length; i++) {
+    		System.out.println(threads[i].getName() + ": dequeued "
+    				+ counts[i] + " of " + rounds + " times, "
+    				+ ((double) rounds * shares[i] / totalShares)
+    				+ " expected");
+    	}
+    	System.out.println("stride: maximum error " + maxError + " dequeues");
+    	Lib.assertTrue(maxError < shares.length);
+
+    	while (queue.nextThread() != null)
+    		;
+
+    	StrideQueue lock = new StrideQueue(true);
+    	KThread holder = new KThread().setName("holder");
+    	lock.acquire(holder);
+    	lock.waitForAccess(threads[3]);
+    	lock.waitForAccess(threads[2]);
+    	Lib.assertTrue(getEffectivePriority(holder) ==
+    			priorityDefault + shares[3] + shares[2]);
+    	setPriority(threads[2], shares[2] + 1);
+    	Lib.assertTrue(getEffectivePriority(holder) ==
+    			priorityDefault + shares[3] + shares[2] + 1);
+    	lock.nextThread();
+    	Lib.assertTrue(getEffectivePriority(holder) == priorityDefault);
+
+    	// a thread from a queue whose time is far ahead shares a new queue
+    	// evenly with a thread that has the same tickets
+    	StrideQueue other = new StrideQueue(false);
+    	KThread newcomer = new KThread().setName("stride newcomer");
+    	other.waitForAccess(newcomer);
+    	other.waitForAccess(threads[0]);
+    	int newcomerCount = 0;
+    	for (int round = 0; round < 10; round++) {
+    		KThread thread = other.nextThread();
+    		if (thread == newcomer)
+    			newcomerCount++;
+    		other.waitForAccess(thread);
+    	}
+    	Lib.assertTrue(newcomerCount == 5);
+    }
+
+    /**
+     * The default priority for a new thread. A thread's priority is its
+     * number of tickets.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum priority that a thread can have.
+     */
+    public static final int priorityMaximum = 1 << 16;
+
+    /**
+     * The stride of a thread with one ticket.
+     */
+    private static final long stride1 = 1L << 30;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+    	if (thread.schedulingState == null)
+    		thread.schedulingState = new ThreadState(thread);
+
+    	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Orders waiting threads by pass, and threads with the same pass by the
+     * time they started waiting.
+     */
+    private static final Comparator<ThreadState> byPass =
+    	new Comparator<ThreadState>() {
+    		public int compare(ThreadState a, ThreadState b) {
+    			if (a.pass != b.pass)
+    				return a.pass < b.pass ? -1 : 1;
+    			return a.addTime < b.addTime ? -1 :
+    				a.addTime > b.addTime ? 1 : 0;
+    		}
+    	};
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread with the lowest pass,
+     * kept in a heap.
+     */
+    protected class StrideQueue extends ThreadQueue {
+    	StrideQueue(boolean transferPriority) {
+    		this.transferPriority = transferPriority;
+    	}
+
+    	public void waitForAccess(KThread thread) {
+    		Lib.assertTrue(Machine.interrupt().disabled());
+
+    		ThreadState state = getThreadState(thread);
+    		Lib.assertTrue(state.waitQueue == null);
+
+    		state.pass = pass + Math.max(state.pass, state.getStride());
+    		state.addTime = counter++;
+    		state.waitQueue = this;
+    		heap.add(state);
+    		totalTickets += state.tickets;
+
+    		if (transferPriority && holder != null)
+    			holder.gainTickets(state.tickets);
+    	}
+
+    	public void acquire(KThread thread) {
+    		Lib.assertTrue(Machine.interrupt().disabled());
+
+    		if (transferPriority && holder != null)
+    			holder.gainTickets(-totalTickets);
+
+    		holder = getThreadState(thread);
+
+    		if (transferPriority)
+    			holder.gainTickets(totalTickets);
+    	}
+
+    	public KThread nextThread() {
+    		Lib.assertTrue(Machine.interrupt().disabled());
+
+    		if (transferPriority && holder != null)
+    			holder.gainTickets(-totalTickets);
+    		holder = null;
+
+    		ThreadState state = heap.poll();
+    		if (state == null)
+    			return null;
+
+    		state.waitQueue = null;
+    		totalTickets -= state.tickets;
+
+    		pass = state.pass;
+    		state.pass = state.getStride();
+
+    		acquire(state.thread);
+
+    		return state.thread;
+    	}
+
+    	public boolean remove(KThread thread) {
+    		Lib.assertTrue(Machine.interrupt().disabled());
+
+    		ThreadState state = getThreadState(thread);
+    		if (state.waitQueue != this)
+    			return false;
+
+    		heap.remove(state);
+    		state.waitQueue = null;
+    		state.pass -= pass;
+    		totalTickets -= state.tickets;
+
+    		if (transferPriority && holder != null)
+    			holder.gainTickets(-state.tickets);
+
+    		return true;
+    	}
+
+    	public void print() {
+    		Lib.assertTrue(Machine.interrupt().disabled());
+
+    		for (Iterator i=heap.iterator(); i.hasNext(); ) {
+    			ThreadState state = (ThreadState) i.next();
+    			System.out.print(state.thread + " (pass " + state.pass
+    					+ ", tickets " + state.tickets + ") ");
+    		}
+    		System.out.println();
+    	}
+
+    	/**
+    	 * <tt>true</tt> if this queue should transfer tickets from waiting
+    	 * threads to the owning thread.
+    	 */
+    	public boolean transferPriority;
+
+    	/** The waiting threads, ordered by pass. */
+    	private PriorityQueue<ThreadState> heap =
+    		new PriorityQueue<ThreadState>(11, byPass);
+
+    	/** The total tickets of the waiting threads. */
+    	private int totalTickets = 0;
+
+    	/** The pass of the thread most recently dequeued. */
+    	private long pass = 0;
+
+    	private int counter = 0;
+
+    	/** The thread that has access to this queue, if any. */
+    	private ThreadState holder = null;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority, its tickets including
+     * any transferred to it, and its pass.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+    	/**
+    	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+    	 * specified thread.
+    	 *
+    	 * @param	thread	the thread this state belongs to.
+    	 */
+    	public ThreadState(KThread thread) {
+    		this.thread = thread;
+    	}
+
+    	/**
+    	 * Set the priority of the associated thread, adjusting its tickets by
+    	 * the difference.
+    	 *
+    	 * @param	priority	the new priority.
+    	 */
+    	public void setPriority(int priority) {
+    		gainTickets(priority - this.priority);
+    		this.priority = priority;
+    	}
+
+    	/**
+    	 * Return the stride of the associated thread, which is inversely
+    	 * proportional to its tickets.
+    	 *
+    	 * @return	the stride of the associated thread.
+    	 */
+    	public long getStride() {
+    		return stride1 / tickets;
+    	}
+
+    	/**
+    	 * Add tickets to the associated thread, and pass them on to the holder
+    	 * of the queue it is waiting on, if that queue transfers tickets. A
+    	 * waiting thread's pass does not depend on its tickets, so it keeps its
+    	 * place in the heap.
+    	 *
+    	 * @param	tickets	the number of tickets to add; may be negative.
+    	 */
+    	public void gainTickets(int tickets) {
+    		if (tickets == 0)
+    			return;
+
+    		this.tickets += tickets;
+    		Lib.assertTrue(this.tickets > 0);
+
+    		if (waitQueue != null) {
+    			waitQueue.totalTickets += tickets;
+    			if (waitQueue.transferPriority && waitQueue.holder != null)
+    				waitQueue.holder.gainTickets(tickets);
+    		}
+    	}
+
+    	/** The thread with which this object is associated. */
+    	protected KThread thread;
+    	/** The priority of the associated thread. */
+    	protected int priority = priorityDefault;
+    	/** The priority plus any tickets transferred to the thread. */
+    	protected int tickets = priorityDefault;
+    	/**
+    	 * While the associated thread waits on a queue, its pass on that
+    	 * queue's time; otherwise, how far ahead of the time of the next queue
+    	 * it joins its pass should be.
+    	 */
+    	protected long pass = 0;
+    	protected int addTime;
+    	/** The time-slice quantum of the associated thread, in ticks. */
+    	protected int quantum = defaultQuantum;
+    	/** The queue the associated thread is waiting on, if any. */
+    	protected StrideQueue waitQueue = null;
+    }
+}
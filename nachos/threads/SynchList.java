@@ -17,6 +17,19 @@ public class SynchList {
 	listEmpty = new Condition(lock);
     }
 
+    /**
+     * Allocate a new synchronized queue that is filled by a device.
+     *
+     * @param	device	<tt>true</tt> if objects are added to this queue when
+     *			a device completes, in which case threads woken to
+     *			remove them are given the scheduler's I/O boost.
+     */
+    public SynchList(boolean device) {
+	list = new LinkedList<Object>();
+	lock = new Lock();
+	listEmpty = new Condition(lock, device);
+    }
+
     /**
      * Add the specified object to the end of the queue. If another thread is
      * waiting in <tt>removeFirst()</tt>, it is woken up.
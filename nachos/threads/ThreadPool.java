@@ -0,0 +1,225 @@
+package nachos.threads;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+
+import nachos.machine.*;
+
+/**
+ * A fixed set of worker threads that run submitted tasks from a bounded work
+ * queue. Each submitted task returns a <tt>Future</tt> that holds its result.
+ *
+ * <p>
+ * Tasks are run in the order they were submitted, by at most
+ * <tt>numWorkers</tt> threads at a time. If the work queue is full,
+ * <tt>submit()</tt> blocks until a worker removes a task from it. A task
+ * submitted after the pool is shut down, including by a thread that was
+ * blocked in <tt>submit()</tt> at the time, is rejected: it never runs, and
+ * its future completes with an exception.
+ *
+ * @see	nachos.threads.Future
+ */
+public class ThreadPool {
+    /**
+     * Allocate a new thread pool and fork its worker threads.
+     *
+     * @param	name		the name to give the worker threads.
+     * @param	numWorkers	the number of worker threads.
+     * @param	maxQueued	the maximum number of tasks waiting to run.
+     */
+    public ThreadPool(String name, int numWorkers, int maxQueued) {
+	Lib.assertTrue(numWorkers > 0 && maxQueued > 0);
+
+	this.maxQueued = maxQueued;
+
+	lock = new Lock();
+	queueNotEmpty = new Condition(lock);
+	queueNotFull = new Condition(lock);
+
+	workers = new KThread[numWorkers];
+	for (int i=0; i<numWorkers; i++) {
+	    workers[i] = new KThread(new Runnable() {
+		    public void run() { work(); }
+		});
+	    workers[i].setName(name + " worker " + i).fork();
+	}
+    }
+
+    /**
+     * Submit a task that returns a value.
+     *
+     * @param	task	the task to run.
+     * @return	a future that will hold the value returned by the task.
+     */
+    public Future submit(Callable task) {
+	Lib.assertTrue(task != null);
+
+	Future future = new Future(task);
+
+	lock.acquire();
+	while (queue.size() >= maxQueued && !shutdown)
+	    queueNotFull.sleep();
+
+	if (shutdown) {
+	    lock.release();
+	    future.reject(new IllegalStateException("thread pool is shut down"));
+	    return future;
+	}
+
+	queue.add(future);
+	queueNotEmpty.wake();
+	lock.release();
+
+	return future;
+    }
+
+    /**
+     * Submit a task that does not return a value.
+     *
+     * @param	task	the task to run.
+     * @return	a future whose value will be <tt>null</tt> once the task has
+     *		completed.
+     */
+    public Future submit(final Runnable task) {
+	Lib.assertTrue(task != null);
+
+	return submit(new Callable() {
+		public Object call() {
+		    task.run();
+		    return null;
+		}
+	    });
+    }
+
+    /**
+     * Stop accepting new tasks, and reject the tasks of threads blocked in
+     * <tt>submit()</tt>. The worker threads finish once every task already
+     * queued has run.
+     */
+    public void shutdown() {
+	lock.acquire();
+	shutdown = true;
+	queueNotEmpty.wakeAll();
+	queueNotFull.wakeAll();
+	lock.release();
+    }
+
+    /**
+     * Shut down this pool and wait for all of its worker threads to finish.
+     */
+    public void awaitTermination() {
+	shutdown();
+
+	for (int i=0; i<workers.length; i++)
+	    workers[i].join();
+    }
+
+    /**
+     * The body of each worker thread. Runs tasks from the work queue until the
+     * pool is shut down and the queue is empty.
+     */
+    private void work() {
+	while (true) {
+	    lock.acquire();
+	    while (queue.isEmpty() && !shutdown)
+		queueNotEmpty.sleep();
+
+	    if (queue.isEmpty()) {
+		lock.release();
+		return;
+	    }
+
+	    Future future = (Future) queue.removeFirst();
+	    queueNotFull.wake();
+	    lock.release();
+
+	    future.run();
+	}
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	ThreadPool pool = new ThreadPool("selfTest", 2, 3);
+
+	final int[] completions = new int[1];
+	Future[] futures = new Future[10];
+
+	for (int i=0; i<futures.length; i++) {
+	    final int n = i;
+	    futures[i] = pool.submit(new Callable() {
+		    public Object call() {
+			KThread.yield();
+			return Integer.valueOf(n * n);
+		    }
+		});
+	    futures[i].onCompletion(new Runnable() {
+		    public void run() { completions[0]++; }
+		});
+	}
+
+	for (int i=0; i<futures.length; i++)
+	    Lib.assertTrue(((Integer) futures[i].get()).intValue() == i * i);
+
+	Future failed = pool.submit(new Callable() {
+		public Object call() throws Exception {
+		    throw new Exception("selfTest");
+		}
+	    });
+	Lib.assertTrue(failed.get() == null && failed.getException() != null);
+
+	pool.awaitTermination();
+	Lib.assertTrue(completions[0] == futures.length);
+
+	shutdownTest();
+    }
+
+    /**
+     * Test that a thread blocked in <tt>submit()</tt> when the pool is shut
+     * down has its task rejected, instead of queueing a task no worker will
+     * ever run.
+     */
+    private static void shutdownTest() {
+	final ThreadPool pool = new ThreadPool("shutdownTest", 1, 1);
+	final Semaphore gate = new Semaphore(0);
+	final Future[] blocked = new Future[1];
+
+	Future running = pool.submit(new Runnable() {
+		public void run() { gate.P(); }
+	    });
+	Future queued = pool.submit(new Runnable() {
+		public void run() { }
+	    });
+
+	KThread submitter = new KThread(new Runnable() {
+		public void run() {
+		    blocked[0] = pool.submit(new Runnable() {
+			    public void run() {
+				Lib.assertNotReached("rejected task ran");
+			    }
+			});
+		}
+	    }).setName("blocked submitter");
+	submitter.fork();
+	for (int i=0; i<10; i++)
+	    KThread.yield();
+
+	pool.shutdown();
+	gate.V();
+	submitter.join();
+
+	Lib.assertTrue(blocked[0].getException() != null);
+	Lib.assertTrue(running.getException() == null &&
+		       queued.getException() == null);
+	pool.awaitTermination();
+    }
+
+    private int maxQueued;
+    private boolean shutdown = false;
+    private LinkedList<Future> queue = new LinkedList<Future>();
+    private Lock lock;
+    private Condition queueNotEmpty;
+    private Condition queueNotFull;
+    private KThread[] workers;
+}
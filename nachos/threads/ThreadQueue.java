@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -91,6 +93,26 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that the specified thread has stopped waiting
+     * for access without receiving it, for example because its wait timed
+     * out. If the thread is still waiting on this queue, remove it, so that
+     * <tt>nextThread()</tt> will not return it and it no longer donates
+     * priority.
+     *
+     * <p>
+     * Queues that are never used for timed waits need not override this
+     * method.
+     *
+     * @param	thread	the thread that has stopped waiting.
+     * @return	<tt>true</tt> if the thread was waiting on this queue, or
+     *		<tt>false</tt> if it had already been given access.
+     */
+    public boolean remove(KThread thread) {
+	Lib.assertNotReached("thread queue does not support timed waits");
+	return false;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
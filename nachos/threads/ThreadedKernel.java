@@ -36,6 +36,20 @@ public class ThreadedKernel extends Kernel {
 
 	alarm  = new Alarm();
 
+	int traceSize = Config.getInteger("SchedulerTrace.size", 0);
+	if (traceSize > 0)
+	    KThread.trace = new SchedulerTrace(traceSize);
+
+	Machine.addHaltHandler(new Runnable() {
+		public void run() {
+		    KThread.printAccounting();
+		    if (KThread.trace != null)
+			KThread.trace.print();
+		    if (Lib.test(KThread.dbgWaitGraph))
+			KThread.dumpThreads();
+		}
+	    });
+
 	Machine.interrupt().enable();
     }
 
@@ -48,10 +62,35 @@ public class ThreadedKernel extends Kernel {
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
+	Lock.selfTest();
+	ReadWriteLock.selfTest();
 	SynchList.selfTest();
+	ThreadPool.selfTest();
+	if (scheduler instanceof LotteryScheduler) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    ((LotteryScheduler) scheduler).selfTest();
+	    Machine.interrupt().restore(intStatus);
+	}
+	if (scheduler instanceof StrideScheduler) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    ((StrideScheduler) scheduler).selfTest();
+	    Machine.interrupt().restore(intStatus);
+	}
+	if (scheduler instanceof MLFQScheduler)
+	    MLFQScheduler.selfTest();
+	if (scheduler instanceof FairScheduler)
+	    FairScheduler.selfTest();
+	if (scheduler instanceof DeadlineScheduler)
+	    DeadlineScheduler.selfTest();
+	if (scheduler instanceof GroupScheduler)
+	    GroupScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+
+	int switches = Config.getInteger("KThread.benchmarkSwitches", 0);
+	if (switches > 0)
+	    KThread.benchmark(switches);
     }
     
     /**
@@ -79,6 +118,13 @@ public class ThreadedKernel extends Kernel {
     private static RoundRobinScheduler dummy1 = null;
     private static PriorityScheduler dummy2 = null;
     private static LotteryScheduler dummy3 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static FairScheduler dummy10 = null;
+    private static DeadlineScheduler dummy11 = null;
+    private static BenchmarkKernel dummy12 = null;
+    private static SchedulerTrace dummy13 = null;
+    private static GroupScheduler dummy14 = null;
     private static Condition2 dummy4 = null;
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
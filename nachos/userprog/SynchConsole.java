@@ -101,8 +101,8 @@ public class SynchConsole {
     private SerialConsole console;
     private Lock readLock = new Lock();
     private Lock writeLock = new Lock();
-    private Semaphore readWait = new Semaphore(0);
-    private Semaphore writeWait = new Semaphore(0);
+    private Semaphore readWait = new Semaphore(0, true);
+    private Semaphore writeWait = new Semaphore(0, true);
 
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
@@ -57,7 +57,35 @@ public class UserProcess {
 	    return false;
 	
 	thread = new UThread(this);
-	thread.setName(name).fork();
+	thread.setName(name);
+
+	if (ThreadedKernel.scheduler instanceof LotteryScheduler) {
+	    LotteryScheduler scheduler =
+		(LotteryScheduler) ThreadedKernel.scheduler;
+	    boolean intStatus = Machine.interrupt().disable();
+	    if (currency == null)
+		currency = scheduler.newCurrency(Config.getInteger(
+		    "LotteryScheduler.processFunding",
+		    LotteryScheduler.priorityMaximum));
+	    scheduler.setCurrency(thread, currency);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	if (ThreadedKernel.scheduler instanceof GroupScheduler) {
+	    GroupScheduler scheduler =
+		(GroupScheduler) ThreadedKernel.scheduler;
+	    boolean intStatus = Machine.interrupt().disable();
+	    if (group == null) {
+		if (parentProcess == null || parentProcess.parentProcess == null)
+		    group = scheduler.newGroup();
+		else
+		    group = parentProcess.group;
+	    }
+	    scheduler.setGroup(thread, group);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	thread.fork();
 
 	return true;
     }
@@ -799,6 +827,20 @@ public class UserProcess {
     public boolean normalExit = false;
     public int status = 0;
     public UThread thread = null;
+
+    /**
+     * The currency that funds this process's threads under a lottery
+     * scheduler, so that the process gets the same share of the processor
+     * however many threads it has.
+     */
+    protected LotteryScheduler.Currency currency = null;
+
+    /**
+     * The group that shares the processor among the processes of this
+     * process's job under a group scheduler: its own group if it was started
+     * by the kernel or by the first process, or else its parent's.
+     */
+    protected GroupScheduler.Group group = null;
     
     /**
      * add by Luo Heng